@@ -0,0 +1,228 @@
+package audio;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * @author Shreyas Raghunath
+ * Micro-benchmarks for the hot paths of the engine: sample generation, waveform evaluation,
+ * cache lookups and whole-song rendering. Every benchmark is warmed up before it is measured
+ * and reports the time per operation, the time per generated sample and the bytes allocated
+ * per operation by all threads, the render and ForkJoin threads included, so engine changes can
+ * be checked against a baseline.
+ *
+ * Usage: java -cp out audio.Benchmarks [name filter]
+ * Run it from the project root so that ./src/audio/sounds can be found. The "playback cold"
+ * benchmarks generate notes through the playback path; run them again with
+ * -Daudio.render.chunk=16384 to compare with rendering every note on one thread.
+ * */
+public final class Benchmarks {
+    /**
+     * How long each benchmark is warmed up and measured, in nanoseconds.
+     * */
+    private static final long WARMUP_NS = 1_000_000_000L, MEASURE_NS = 2_000_000_000L;
+    /**
+     * The duration of the notes used by the generation benchmarks in milliseconds.
+     * */
+    private static final double NOTE_MS = 250;
+    /**
+     * The number of samples in one note.
+     * */
+    private static final int NOTE_SAMPLES = (int) (NOTE_MS * 44.1f);
+    /**
+     * Used to measure allocations, see allocatedBytes().
+     * */
+    private static final com.sun.management.ThreadMXBean THREADS = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    /**
+     * Results are folded into this field so that the JIT cannot remove the benchmarked code.
+     * */
+    private static volatile long sink;
+    /**
+     * A benchmarked operation.
+     * */
+    @FunctionalInterface
+    private interface Op {
+        /**
+         * Run the operation once.
+         * @return A value that depends on the result of the operation.
+         * */
+        long run() throws Exception;
+    }
+
+    private Benchmarks() {
+    }
+    /**
+     * Run the benchmark suite.
+     * @param args An optional filter. Only benchmarks whose name contains it are run.
+     * */
+    public static void main(String[] args) throws Exception {
+        String filter = args.length > 0 ? args[0] : "";
+        CachedPSG psg = new CachedPSG(new ByteArrayInputStream(new byte[0]), "bench");
+        System.out.printf("%-44s %12s %12s %14s%n", "benchmark", "ns/op", "ns/sample", "bytes/op");
+
+        String[] names = {"SQUARE", "TRIANGLE", "SAWTOOTH", "KICK", "SNARE"};
+        PSG.Waveform[] waveforms = {PSG.Waveform.SQUARE, PSG.Waveform.TRIANGLE, PSG.Waveform.SAWTOOTH, PSG.Waveform.KICK, PSG.Waveform.SNARE};
+        for (int w = 0; w < waveforms.length; w++) {
+            PSG.Waveform wf = waveforms[w];
+            for (String flags : new String[]{"", "a", "v", "av"}) {
+                boolean a = flags.contains("a"), v = flags.contains("v");
+                run(filter, "genTone " + names[w] + (flags.isEmpty() ? "" : " " + flags), NOTE_SAMPLES,
+                        () -> psg.genTone(wf, 440, 0.25, NOTE_MS, a, v).length);
+            }
+        }
+        int longNote = (int) (2000 * 44.1f);
+        run(filter, "genTone SQUARE 2000 ms (parallel)", longNote, () -> psg.genTone(PSG.Waveform.SQUARE, 440, 0.25, 2000, false, false).length);
+        run(filter, "genTone KICK 2000 ms (parallel)", longNote, () -> psg.genTone(PSG.Waveform.KICK, 440, 0.25, 2000, false, false).length);
+        for (int stepDown : new int[]{1, 4, 16, 64}) {
+            run(filter, "genWhiteNoise w" + stepDown, NOTE_SAMPLES, () -> psg.genWhiteNoise(stepDown, 0.25, NOTE_MS, false).length);
+            run(filter, "genWhiteNoise w" + stepDown + " attenuated", NOTE_SAMPLES, () -> psg.genWhiteNoise(stepDown, 0.25, NOTE_MS, true).length);
+        }
+        run(filter, "genWhiteNoise ws4 (NES short mode)", NOTE_SAMPLES, () -> psg.genWhiteNoise(4, 0.25, NOTE_MS, false, true).length);
+        float[] chord = new float[NOTE_SAMPLES];
+        double[] triad = {261.63, 329.63, 392};
+        run(filter, "chord SQUARE 3 voices", NOTE_SAMPLES, () -> {
+            psg.chord(PSG.Waveform.SQUARE, triad, 0.25, NOTE_MS, false, false, null).generate(chord, 0, 0, chord.length);
+            return chord.length;
+        });
+
+        for (int ms : new int[]{100, 350}) { // Cached notes, above and near the top of the parallel range
+            CachedPSG note = new CachedPSG(new ByteArrayInputStream(("440 0.25 " + ms).getBytes()), "note");
+            float[] block = new float[Mixer.BLOCK_SIZE];
+            run(filter, "playback cold note " + ms + " ms", (long) (ms * 44.1f), () -> {
+                CachedPSG.getCache().clear(); // Every play is a cache miss, generated as the Mixer would
+                note.start();
+                long frames = 0;
+                for (int n = note.render(block, 0, block.length); n > 0; n = note.render(block, 0, block.length)) frames += n;
+                return frames;
+            });
+        }
+
+        PSG.Waveform combined = PSG.Waveform.combine(PSG.Waveform.SQUARE, PSG.Waveform.TRIANGLE, PSG.Waveform.SAWTOOTH);
+        PSG.Waveform dissolved = PSG.Waveform.dissolve(PSG.Waveform.SQUARE, PSG.Waveform.TRIANGLE);
+        PSG.Waveform nested = PSG.Waveform.dissolve(combined, PSG.Waveform.combine(PSG.Waveform.SAWTOOTH, dissolved));
+        run(filter, "Waveform.combine output", NOTE_SAMPLES, () -> evaluate(combined));
+        run(filter, "Waveform.dissolve output", NOTE_SAMPLES, () -> evaluate(dissolved));
+        double[] xs = new double[Mixer.BLOCK_SIZE], ns = new double[Mixer.BLOCK_SIZE], outs = new double[Mixer.BLOCK_SIZE];
+        run(filter, "Waveform.combine output (blocks)", NOTE_SAMPLES, () -> evaluateBlocks(combined, xs, ns, outs));
+        run(filter, "Waveform.dissolve output (blocks)", NOTE_SAMPLES, () -> evaluateBlocks(dissolved, xs, ns, outs));
+        run(filter, "Waveform nested combine/dissolve output (blocks)", NOTE_SAMPLES, () -> evaluateBlocks(nested, xs, ns, outs));
+        run(filter, "genTone combine", NOTE_SAMPLES, () -> psg.genTone(combined, 440, 0.25, NOTE_MS, false, false).length);
+        run(filter, "genTone dissolve", NOTE_SAMPLES, () -> psg.genTone(dissolved, 440, 0.25, NOTE_MS, false, false).length);
+        run(filter, "genTone nested combine/dissolve", NOTE_SAMPLES, () -> psg.genTone(nested, 440, 0.25, NOTE_MS, false, false).length);
+
+        StringBuilder notes = new StringBuilder(); // 1024 distinct 1 ms notes, so each play is mostly cache lookups
+        for (int i = 0; i < 1024; i++) notes.append(200 + i).append(" 0.25 1\n");
+        CachedPSG lookups = new CachedPSG(new ByteArrayInputStream(notes.toString().getBytes()), "lookups");
+        lookups.prerender();
+        float[] small = new float[Mixer.BLOCK_SIZE];
+        run(filter, "CachedPSG lookups warm (1024 keys)", 0, () -> { // Through the real Key and FloatBuffer weigher, as the Mixer plays
+            lookups.start();
+            long frames = 0;
+            for (int n = lookups.render(small, 0, small.length); n > 0; n = lookups.render(small, 0, small.length)) frames += n;
+            return frames;
+        });
+
+        File[] songs = new File("./src/audio/sounds").listFiles(File::isDirectory);
+        if (songs == null) {
+            System.out.println("./src/audio/sounds not found, skipping the render benchmarks");
+            return;
+        }
+        Arrays.sort(songs);
+        for (File song : songs) {
+            File[] files = song.listFiles((dir, name) -> name.endsWith(".txt"));
+            if (files == null || files.length == 0) continue;
+            Arrays.sort(files);
+            long frames = render(files); // Also warms up the cache
+            run(filter, "render " + song.getName() + " (" + files.length + " sequences)", frames, () -> render(files));
+        }
+    }
+    /**
+     * Evaluate a waveform once for every sample of a note.
+     * @param wf The waveform.
+     * @return A value that depends on the outputs.
+     * */
+    private static long evaluate(PSG.Waveform wf) {
+        double b = PSG.TWO_PI * 440 / 44100, sum = 0;
+        for (int i = 0; i < NOTE_SAMPLES; i++) sum += wf.output(b * i, i / (double) NOTE_SAMPLES);
+        return (long) sum;
+    }
+    /**
+     * Evaluate a waveform for every sample of a note, one block at a time.
+     * @param wf The waveform.
+     * @param x The buffer for the inputs.
+     * @param n The buffer for the progress through the note.
+     * @param out The buffer for the outputs.
+     * @return A value that depends on the outputs.
+     * */
+    private static long evaluateBlocks(PSG.Waveform wf, double[] x, double[] n, double[] out) {
+        double b = PSG.TWO_PI * 440 / 44100, sum = 0;
+        for (int start = 0; start < NOTE_SAMPLES; start += x.length) {
+            int length = Math.min(x.length, NOTE_SAMPLES - start);
+            for (int k = 0; k < length; k++) {
+                x[k] = b * (start + k);
+                n[k] = (start + k) / (double) NOTE_SAMPLES;
+            }
+            wf.output(x, n, out, length);
+            for (int k = 0; k < length; k++) sum += out[k];
+        }
+        return (long) sum;
+    }
+    /**
+     * Render every file of a song in parallel, as the Mixer does, without an audio line.
+     * @param files The sound files. Each one becomes its own sequence.
+     * @return The number of frames rendered.
+     * */
+    private static long render(File[] files) throws IOException {
+        List<List<PSG>> sequences = new ArrayList<>();
+        for (File f : files) {
+            List<PSG> sequence = new ArrayList<>();
+            sequence.add(new CachedPSG(new FileInputStream(f), f.getName()));
+            sequences.add(sequence);
+        }
+        Mixer mixer = new Mixer(sequences);
+        byte[] out = new byte[Mixer.BLOCK_SIZE];
+        long frames = 0;
+        for (int n = mixer.mix(out, out.length); n > 0; n = mixer.mix(out, out.length)) frames += n;
+        return frames;
+    }
+    /**
+     * Get the number of bytes allocated so far by all live threads, so that the allocations of
+     * the threads an operation hands work to (the ForkJoin pool, playback threads) are counted.
+     * Threads that end during a measurement are not counted; the pools keep theirs alive.
+     * @return The number of bytes.
+     * */
+    private static long allocatedBytes() {
+        long sum = 0;
+        for (long bytes : THREADS.getThreadAllocatedBytes(THREADS.getAllThreadIds())) sum += Math.max(0, bytes); // -1 for a thread that just ended
+        return sum;
+    }
+    /**
+     * Warm up, measure and report one benchmark.
+     * @param filter Only run the benchmark if its name contains this.
+     * @param name The name of the benchmark.
+     * @param samples The number of samples one operation generates, or 0 if it does not generate samples.
+     * @param op The operation.
+     * */
+    private static void run(String filter, String name, long samples, Op op) throws Exception {
+        if (!name.contains(filter)) return;
+        long result = 0;
+        for (long end = System.nanoTime() + WARMUP_NS; System.nanoTime() < end;) result += op.run();
+        long ops = 0, allocated = allocatedBytes(), start = System.nanoTime(), now;
+        do {
+            result += op.run();
+            ops++;
+        } while ((now = System.nanoTime()) - start < MEASURE_NS);
+        allocated = allocatedBytes() - allocated;
+        sink += result;
+        double nsPerOp = (now - start) / (double) ops;
+        System.out.printf(Locale.ROOT, "%-44s %12.1f %12s %14d%n", name, nsPerOp,
+                samples > 0 ? String.format(Locale.ROOT, "%.2f", nsPerOp / samples) : "-", allocated / ops);
+    }
+}
@@ -0,0 +1,101 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @author Shreyas Raghunath
+ * Checks the determinism the engine promises, by rendering a song of the library to WAVE files:
+ * two renders with the same noise seed are identical, even when every sample is generated again,
+ * a render with another seed is not, and a render started at any frame matches the tail of the
+ * full render byte for byte. Exits with status 1 if a check fails.
+ *
+ * Usage: java -cp out audio.SelfCheck [song]
+ * Run it from the project root so that ./src/audio/sounds can be found. The default song is
+ * lofi, whose percussion is made of white noise.
+ * */
+public final class SelfCheck {
+    /**
+     * The format of the renders: 16-bit stereo without dither, so that equal samples give equal bytes.
+     * */
+    private static final AudioFormat FORMAT = new AudioFormat(44100, 16, 2, true, false);
+    /**
+     * The number of checks that failed.
+     * */
+    private static int failures;
+
+    private SelfCheck() {
+    }
+    /**
+     * Run the checks.
+     * @param args An optional song, a directory of ./src/audio/sounds.
+     * */
+    public static void main(String[] args) throws IOException {
+        File song = new File("./src/audio/sounds", args.length > 0 ? args[0] : "lofi");
+        File[] files = song.listFiles((dir, name) -> name.endsWith(".txt"));
+        if (files == null || files.length == 0) {
+            System.err.println("No sound files in " + song);
+            System.exit(1);
+        }
+        Arrays.sort(files);
+        long seed = Noise.getSeed();
+
+        byte[] full = render(files, 0);
+        CachedPSG.getCache().clear(); // Generate every sample again
+        check("same seed, same render", Arrays.equals(full, render(files, 0)));
+        CachedPSG.setNoiseSeed(seed + 1);
+        check("another seed, another render", !Arrays.equals(full, render(files, 0)));
+        CachedPSG.setNoiseSeed(seed);
+        check("seed restored, same render", Arrays.equals(full, render(files, 0)));
+
+        int frameSize = FORMAT.getFrameSize();
+        long frames = full.length / frameSize;
+        for (long start : new long[]{1, Mixer.BLOCK_SIZE + 7, frames / 3, frames / 2 + 12345, frames - 1}) {
+            byte[] tail = render(files, start);
+            check("start at frame " + start + " of " + frames, Arrays.equals(tail, Arrays.copyOfRange(full, (int) (start * frameSize), full.length)));
+        }
+        if (failures > 0) {
+            System.err.println(failures + " check(s) failed");
+            System.exit(1);
+        }
+        System.out.println("all checks passed");
+    }
+    /**
+     * Render every file of a song, each one as its own sequence, like Benchmarks does.
+     * @param files The sound files.
+     * @param start The frame to start at.
+     * @return The samples written, without the header of the file.
+     * @throws IOException If a file cannot be read or written.
+     * */
+    private static byte[] render(File[] files, long start) throws IOException {
+        List<List<PSG>> sequences = new ArrayList<>();
+        for (File f : files) {
+            List<PSG> sequence = new ArrayList<>();
+            sequence.add(new CachedPSG(new FileInputStream(f), f.getName()));
+            sequences.add(sequence);
+        }
+        File wav = File.createTempFile("selfcheck", ".wav");
+        try {
+            long frames = OfflineRenderer.render(sequences, wav, FORMAT, false, start);
+            byte[] bytes = Files.readAllBytes(wav.toPath());
+            return Arrays.copyOfRange(bytes, bytes.length - (int) (frames * FORMAT.getFrameSize()), bytes.length);
+        } finally {
+            wav.delete();
+        }
+    }
+    /**
+     * Report a check.
+     * @param name What is checked.
+     * @param passed If the check passed.
+     * */
+    private static void check(String name, boolean passed) {
+        System.out.println((passed ? "ok    " : "FAIL  ") + name);
+        if (!passed) failures++;
+    }
+}
@@ -0,0 +1,177 @@
+package audio;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.Percentage;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Shreyas Raghunath
+ * The JfrMetrics class records the engine metrics as JDK Flight Recorder events, so they show up
+ * next to GC pauses and thread activity in a recording. It is installed with
+ * -Daudio.metrics=jfr and a recording, e.g. -XX:StartFlightRecording=filename=audio.jfr.
+ * Synthesis, evictions, line fill levels and underruns are recorded as they happen, and the
+ * cache counters, voices and threads are summed up in an audio.Statistics event every second.
+ * It lives in its own source folder because jdk.jfr is not part of the Java 8 API; it needs a
+ * JVM with JFR (8u262 or later) and is loaded by name, see Instrumentation.
+ * */
+public final class JfrMetrics implements Metrics {
+    /**
+     * The cache counters since the last audio.Statistics event.
+     * */
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+    /**
+     * The size and budget of the sample cache the last time it changed.
+     * */
+    private volatile long cacheBytes, cacheCapacity;
+    /**
+     * The peak number of voices and busy threads since the last audio.Statistics event.
+     * */
+    private final LongAccumulator voices = new LongAccumulator(Math::max, 0), threads = new LongAccumulator(Math::max, 0);
+
+    public JfrMetrics() {
+        FlightRecorder.addPeriodicEvent(StatisticsEvent.class, () -> {
+            StatisticsEvent e = new StatisticsEvent();
+            e.cacheHits = hits.sumThenReset();
+            e.cacheMisses = misses.sumThenReset();
+            e.cacheEvictions = evictions.sumThenReset();
+            e.cacheBytes = cacheBytes;
+            e.cacheCapacity = cacheCapacity;
+            e.voices = (int) voices.getThenReset();
+            e.threads = (int) threads.getThenReset();
+            e.commit();
+        });
+    }
+    public void synthesized(String sound, int command, int frames, long nanos) {
+        SynthesisEvent e = new SynthesisEvent();
+        if (!e.isEnabled()) return;
+        e.sound = sound;
+        e.command = command;
+        e.frames = frames;
+        e.time = nanos;
+        e.commit();
+    }
+    public void cacheHit() {
+        hits.increment();
+    }
+    public void cacheMiss() {
+        misses.increment();
+    }
+    public void cacheEvicted(long bytes) {
+        evictions.increment();
+        CacheEvictionEvent e = new CacheEvictionEvent();
+        if (!e.isEnabled()) return;
+        e.bytes = bytes;
+        e.commit();
+    }
+    public void cacheSize(long bytes, long capacity) {
+        cacheBytes = bytes;
+        cacheCapacity = capacity;
+    }
+    public void lineFill(int line, int queued, int capacity) {
+        LineFillEvent e = new LineFillEvent();
+        if (!e.isEnabled()) return;
+        e.line = line;
+        e.queued = queued;
+        e.fill = (double) queued / capacity;
+        e.commit();
+    }
+    public void underrun(int line) {
+        UnderrunEvent e = new UnderrunEvent();
+        if (!e.isEnabled()) return;
+        e.line = line;
+        e.commit();
+    }
+    public void mixed(int line, int voices, int threads) {
+        this.voices.accumulate(voices);
+        this.threads.accumulate(threads);
+    }
+
+    @Name("audio.Synthesis")
+    @Label("Synthesis")
+    @Category("Audio")
+    @Description("A command was synthesized: the whole sample of a cached command, or one block of a streamed one")
+    @StackTrace(false)
+    static final class SynthesisEvent extends Event {
+        @Label("Sound")
+        String sound;
+        @Label("Command")
+        int command;
+        @Label("Frames")
+        int frames;
+        @Label("Synthesis Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long time;
+    }
+
+    @Name("audio.CacheEviction")
+    @Label("Sample Cache Eviction")
+    @Category("Audio")
+    @StackTrace(false)
+    static final class CacheEvictionEvent extends Event {
+        @Label("Size")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("audio.LineFill")
+    @Label("Output Line Fill")
+    @Category("Audio")
+    @Description("How full an output line was before a block was written to it")
+    @StackTrace(false)
+    static final class LineFillEvent extends Event {
+        @Label("Mixer")
+        int line;
+        @Label("Queued")
+        @DataAmount
+        int queued;
+        @Label("Fill")
+        @Percentage
+        double fill;
+    }
+
+    @Name("audio.Underrun")
+    @Label("Output Line Underrun")
+    @Category("Audio")
+    @Description("An output line ran dry before the next block was written")
+    @StackTrace(false)
+    static final class UnderrunEvent extends Event {
+        @Label("Mixer")
+        int line;
+    }
+
+    @Name("audio.Statistics")
+    @Label("Audio Statistics")
+    @Category("Audio")
+    @Description("Sample cache counters, and the peak number of voices and busy threads, since the previous event")
+    @Period("1 s")
+    @StackTrace(false)
+    static final class StatisticsEvent extends Event {
+        @Label("Cache Hits")
+        long cacheHits;
+        @Label("Cache Misses")
+        long cacheMisses;
+        @Label("Cache Evictions")
+        long cacheEvictions;
+        @Label("Cache Size")
+        @DataAmount
+        long cacheBytes;
+        @Label("Cache Budget")
+        @DataAmount
+        long cacheCapacity;
+        @Label("Voices")
+        int voices;
+        @Label("Busy Threads")
+        int threads;
+    }
+}
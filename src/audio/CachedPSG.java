@@ -1,83 +1,212 @@
 package audio;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
-import java.io.BufferedReader;
 import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.lang.ref.SoftReference;
+import java.nio.FloatBuffer;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 /** PSG = Programmable sound generator
  * @author Shreyas Raghunath
  * The CachedPSG class is an instance of the PSG interface that
  * caches generated samples to avoid unnecessarily spending CPU
  * power on generating new samples for commands that have already
- * been seen before.
+ * been seen before. It does not own an audio line: the Mixer
+ * pulls the samples block by block through render().
  * */
 public class CachedPSG implements PSG {
     /**
-     * The sample rate in kHz. Set to 44.1 kHz for CD-quality audio.
+     * The default rate in Hz and depth in radians of the vibrato (the v flag), and the default rate
+     * in Hz and depth of the tremolo.
      * */
-    private static final float SAMPLE_RATE_KHZ = 44.1f;
+    private static final double VIBRATO_HZ = 30 / TWO_PI, VIBRATO_DEPTH = 1.75, TREMOLO_HZ = 6, TREMOLO_DEPTH = 0.5;
     /**
-     * The sample rate in Hz. Simply multiply the sample rate in kHz
-     * by 1000.
+     * The default sample rate in Hz. Set to 44.1 kHz for CD-quality audio.
      * */
-    private static final float SAMPLE_RATE_HZ = SAMPLE_RATE_KHZ * 1e3f;
+    static final float DEFAULT_SAMPLE_RATE = 44100f;
     /**
-     * The format of the generated samples is 8-bit signed PCM with mono speaker support.
+     * The sample rate the stepdown of white noise is measured at.
      * */
-    private static final AudioFormat FORMAT = new AudioFormat(SAMPLE_RATE_HZ, 8, 1, true, false);
-    // NOTE: Must make into a Map<Waveform, Map<String[], byte[]>> to get rid of bugs
+    private static final float NOISE_REFERENCE_RATE = 44100f;
+    /**
+     * The default output format is 8-bit signed PCM with mono speaker support. The samples
+     * themselves are floats, which the Mixer converts to the output format.
+     * */
+    static final AudioFormat FORMAT = new AudioFormat(DEFAULT_SAMPLE_RATE, 8, 1, true, false);
     /**
      * The cache where the samples are stored. They are accessible using the
-     * waveform they are played with and the command they correspond to.
+     * waveform they are played with, the sample rate, the playback speed and the
+     * command they correspond to, see Key. Its budget in bytes can be set with the
+     * audio.cache.bytes system property.
+     * The samples are floats without the loudness of the PSG, which is applied
+     * while rendering. So one sample serves every PSG that plays the command at
+     * that speed, whatever its loudness.
+     * */
+    private static final SampleCache<Key, FloatBuffer> cache = new SampleCache<>(Long.getLong("audio.cache.bytes", 32L << 20), s -> s.capacity() * Float.BYTES);
+    /**
+     * The persistent cache behind the memory cache, or null if audio.cache.dir is not set. Samples
+     * loaded from it are memory-mapped rather than copied onto the heap.
+     * */
+    private static final DiskCache disk = DiskCache.fromProperties();
+    /**
+     * Names of the built-in waveforms that stay the same from one JVM to the next. Only samples of
+     * these waveforms and of white noise can be stored on disk.
+     * */
+    private static final Map<PSG.Waveform, String> stableNames = new HashMap<>();
+    static {
+        stableNames.put(PSG.Waveform.SQUARE, "square");
+        stableNames.put(PSG.Waveform.TRIANGLE, "triangle");
+        stableNames.put(PSG.Waveform.SAWTOOTH, "sawtooth");
+        stableNames.put(PSG.Waveform.KICK, "kick");
+        stableNames.put(PSG.Waveform.SNARE, "snare");
+    }
+    /**
+     * The longest command, in samples, whose sample is generated in full and cached. Longer commands
+     * are streamed: they are generated block by block straight into the buffer of the Mixer, so
+     * memory use does not grow with the length of the notes. Can be set with the
+     * audio.cache.maxFrames system property. The default is about 370 ms.
+     * */
+    static final int MAX_CACHED_FRAMES = Integer.getInteger("audio.cache.maxFrames", 16384);
+    /**
+     * The size of the voice pool: the number of notes a chord plays at once. Can be set with the
+     * audio.voices system property. When a chord has more notes, voices are stolen, see VoicePool.
+     * */
+    static final int VOICES = Math.max(1, Integer.getInteger("audio.voices", 8));
+    /**
+     * The voice pool of each thread. Chords are rendered by whichever thread needs them, several
+     * chunks of a sample at once with ParallelRenderer, so every thread has a fixed pool of its
+     * own, allocated once and reused by every chord it renders.
+     * */
+    private static final ThreadLocal<VoicePool> voicePool = ThreadLocal.withInitial(VoicePool::new);
+    /**
+     * The buffers in which each thread evaluates a waveform a block at a time: the x and n of every
+     * sample and the outputs.
      * */
-    private static final Map<PSG.Waveform, Map<Command, SoftReference<byte[]>>> cache = new HashMap<>();
+    private static final ThreadLocal<double[][]> waveBuffer = ThreadLocal.withInitial(() -> new double[3][Mixer.BLOCK_SIZE]);
+    /**
+     * Counts the changes that affect every sample at once (wavetables, noise seed), so that the
+     * generators kept for streamed commands can tell they are out of date.
+     * */
+    private static final AtomicInteger synthesis = new AtomicInteger();
+    /**
+     * Whether tones of the built-in SQUARE, TRIANGLE and SAWTOOTH waveforms are read from band-limited
+     * wavetables instead of being computed with the exact formulas. Can be turned off with
+     * -Daudio.wavetables=false to compare both paths.
+     * */
+    private static volatile boolean wavetables = !"false".equals(System.getProperty("audio.wavetables"));
+    /**
+     * The ids of the waveforms in use, used in cache keys. Id 0 is white noise. Waveforms are
+     * compared by structure, so combining the same waveforms again gets the same id, and are held
+     * weakly, so waveforms nobody uses any more are forgotten. Ids are never reused, so the
+     * samples of a forgotten waveform are never mistaken for those of another one; they are
+     * evicted from the cache like any unused sample.
+     * */
+    private static final Map<PSG.Waveform, Integer> waveformIds = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicInteger nextWaveformId = new AtomicInteger(1);
+    /**
+     * The ids of the percussion waveforms.
+     * */
+    private static final int[] PERCUSSION_IDS = new int[PERCUSSION_WAVEFORMS.length];
+    static {
+        for (int i = 0; i < PERCUSSION_WAVEFORMS.length; i++) PERCUSSION_IDS[i] = waveformId(PERCUSSION_WAVEFORMS[i]);
+    }
     /**
      * Boolean flags indicating the status of the CachedPSG instance
-     * and whether it is in percussion mode.
+     * and whether it is in percussion mode. The status is read by other threads.
      * */
-    private boolean running, percussion;
+    private volatile boolean running;
+    private boolean percussion;
     /**
      * Double variables indicating playback speed and master volume.
      * */
     private double playbackSpeed, loudness;
+    /**
+     * The sample rate the PSG renders at, in Hz, and the number of samples per millisecond.
+     * */
+    private float sampleRate = DEFAULT_SAMPLE_RATE, samplesPerMs = DEFAULT_SAMPLE_RATE / 1000f;
+    /**
+     * The number of frames before each command at the current playback speed and sample rate, with
+     * the total at the end, or null if it has to be computed again.
+     * */
+    private volatile long[] starts;
     /**
      * A pointer to the waveform that is currently in use.
      * */
     private byte wfPtr;
     /**
-     * The sound channel to which the sample data is written to.
+     * The compiled commands to play. Shared with every other PSG that plays the same sound.
+     * */
+    private final Program program;
+    /**
+     * The index of the next command to process, the number of times the loop section is played
+     * after the opening and the number of passes left in the current playback.
+     * */
+    private int pc, loops = 1, loopsLeft;
+    /**
+     * The note that is currently being rendered, its length at the current playback speed and at
+     * the normal speed, and the position within it at the current playback speed.
      * */
-    private SourceDataLine channel;
+    private Generator note;
+    private int notePos, noteLength;
     /**
-     * The list of commands to play.
+     * The generators of the streamed commands, by command index, or null where there is none yet.
+     * They are kept so that playing a long note again allocates nothing. Dropped whenever a
+     * setting they depend on changes. Only used by the thread that renders the PSG.
      * */
-    private List<Command> commands;
+    private Streamed[] streamed;
     /**
      * The list of waveforms used by this instance.
      * */
     private PSG.Waveform[] waveforms;
+    /**
+     * The cache ids of the waveforms used by this instance.
+     * */
+    private int[] ids;
     
+    /**
+     * Renders a range of the canonical samples of a note into a buffer. A note is either copied
+     * from a cached sample or, if it is too long to be cached, generated as it is played.
+     * */
+    @FunctionalInterface
+    interface Generator {
+        /**
+         * Render the samples [from, to) of the note.
+         * @param buffer The buffer to write samples to.
+         * @param offset The index in the buffer where sample from is written.
+         * @param from The index of the first sample within the note.
+         * @param to The index after the last sample within the note.
+         * */
+        void generate(float[] buffer, int offset, int from, int to);
+    }
+
     // printing
     /**
      * Used for debugging purposes only.
      * */
     public String name;
     /**
-     * Creates a sub-cache to store each sample for future playback.
-     * @return The new sub-cache that stores samples corresponding to a particular waveform.
+     * @param program The compiled commands to play. They are never modified, so they can be shared.
+     * @param name The name of this instance. Used for debugging purposes.
+     * @param waveforms The list of waveforms to be used with this instance.
      * */
-    private static Map<Command, SoftReference<byte[]>> createMap() {
-        return new HashMap<>();
+    public CachedPSG(Program program, String name, PSG.Waveform... waveforms) {
+        running = false;
+        wfPtr = 0;
+        playbackSpeed = loudness = 1;
+        this.program = program;
+        this.name = name;
+        this.waveforms = waveforms;
+        ids = new int[waveforms.length];
+        for (int i = 0; i < waveforms.length; i++) ids[i] = waveformId(waveforms[i]);
     }
-    static {
-        cache.put(null, createMap());
-        for (PSG.Waveform pwf : PSG.PERCUSSION_WAVEFORMS) cache.put(pwf, createMap());
+    /**
+     * @param program The compiled commands to play. They are never modified, so they can be shared.
+     * @param name The name of this instance. Used for debugging purposes.
+     * */
+    public CachedPSG(Program program, String name) {
+        this(program, name, PSG.Waveform.SQUARE);
     }
     /**
      * @param file The input stream from which the command data is read.
@@ -85,23 +214,7 @@ public class CachedPSG implements PSG {
      * @param waveforms The list of waveforms to be used with this instance.
      * */
     public CachedPSG(InputStream file, String name, PSG.Waveform... waveforms) {
-        this();
-        this.name = name;
-        this.waveforms = waveforms;
-        for (PSG.Waveform wf : waveforms) if (!cache.containsKey(wf)) cache.put(wf, createMap()); // Set up cache for waveforms
-        try (BufferedReader r = new BufferedReader(new InputStreamReader(Objects.requireNonNull(file)))) { // Read the commands from the input stream
-            commands = new LinkedList<>(); // Linked list because removals are O(1)
-            for (String l = r.readLine(); l != null; l = r.readLine()) {
-                if (!(l.isEmpty() || l.startsWith("//"))) { // Exclude empty spaces and comments
-                    l = l.toLowerCase().trim();
-                    byte commentIndex = (byte) l.indexOf("//");
-                    if (commentIndex != -1) l = l.substring(0, commentIndex);
-                    commands.add(new Command(l.split(" ")));
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        this(compile(file), name, waveforms);
     }
     /**
      * @param file The input stream from which the command data is read.
@@ -111,104 +224,312 @@ public class CachedPSG implements PSG {
         this(file, name, PSG.Waveform.SQUARE);
     }
     /**
-     * Default constructor
+     * Compile a sound file, falling back to an empty program if it is malformed.
+     * @param file The input stream from which the command data is read.
+     * @return The compiled program.
      * */
-    private CachedPSG() {
-        running = false;
-        wfPtr = 0;
-        playbackSpeed = loudness = 1;
+    private static Program compile(InputStream file) {
         try {
-            channel = AudioSystem.getSourceDataLine(FORMAT); // Set up underlying audio channel
-            channel.open();
-        } catch (LineUnavailableException e) {
+            return Program.compile(file); // Parse the text once
+        } catch (Exception e) {
             e.printStackTrace();
+            return Program.EMPTY;
         }
     }
     /**
-     * Start the thread for this PSG.
+     * Rewind the PSG to its first command, opening included, so that the Mixer can pull samples from it.
+     * Nothing is parsed or allocated, so a PSG can be replayed as often as needed.
      * */
     public synchronized void start() {
-        new Thread(this, toString()).start();
+        pc = 0;
+        wfPtr = 0;
+        loopsLeft = loops;
+        notePos = noteLength = 0;
+        note = null;
         running = true;
     }
     /**
-     * The run() method is where the magic happens. The PSG runs through each command.
+     * Start the PSG at a frame instead of at its first command: find the command that plays there,
+     * set up the waveform and loop pass it would have reached, and skip the first part of its note.
+     * @param frame The frame, from the start of the PSG. If it is past the end, the PSG has nothing left to play.
+     * */
+    public synchronized void start(long frame) {
+        start();
+        if (frame <= 0) return;
+        int i = getCommandAt(frame);
+        if (i < 0) { // Past the end
+            pc = program.size();
+            loopsLeft = 0;
+            return;
+        }
+        long[] s = timeline();
+        int loopStart = program.loopStart();
+        long pass = frame < s[loopStart] ? 0 : (frame - s[loopStart]) / (s[s.length - 1] - s[loopStart]);
+        for (int j = 0; j < (pass > 0 ? program.size() : i); j++) {
+            if (program.ops[j] == Program.WAVEFORM) wfPtr = (byte) program.args[j]; // The waveform in effect at the end of the previous pass
+        }
+        for (int j = loopStart; pass > 0 && j < i; j++) {
+            if (program.ops[j] == Program.WAVEFORM) wfPtr = (byte) program.args[j];
+        }
+        loopsLeft = (int) (loops - pass);
+        pc = i;
+        next();
+        notePos = (int) (fold(frame) - s[i]);
+    }
+    /**
+     * Play this PSG on its own. Blocks until it has finished.
      * */
     public void run() {
+        new Mixer(Collections.singletonList(Collections.<PSG>singletonList(this))).run();
+    }
+    /**
+     * Render the next block of samples. The PSG runs through each command. The samples are scaled by
+     * the loudness on the fly.
+     * @param buffer The buffer to write samples to.
+     * @param offset The index of the first sample to write.
+     * @param length The maximum number of samples to write.
+     * @return The number of samples written. If it is less than length, the PSG has finished.
+     * */
+    public int render(float[] buffer, int offset, int length) {
+        int written = 0;
         try {
-            channel.start();
-            boolean hasOpening = false;
-            for (Iterator<Command> it = commands.iterator(); it.hasNext() && !hasOpening; hasOpening = it.next().strings[0].equals("end"));
-            if (hasOpening) { // Remove commands that are part of the opening so that they are never played again ion future loops
-                for (Command l = commands.remove(0); !l.strings[0].equals("end"); l = commands.remove(0)) {
-                    process(l);
+            while (written < length) {
+                if (notePos == noteLength) { // Move on to the next command
+                    if (!next()) {
+                        running = false;
+                        break;
+                    }
+                    continue;
                 }
+                int n = Math.min(length - written, noteLength - notePos);
+                note.generate(buffer, offset + written, notePos, notePos + n); // Copies a cached sample or streams a long note
+                for (int j = offset + written; j < offset + written + n; j++) buffer[j] *= loudness;
+                notePos += n;
+                written += n;
             }
-            for (Command l : commands) process(l);
-            running = false;
         } catch (Exception e) {
             e.printStackTrace();
+            running = false;
         }
+        return written;
     }
     /**
-     * Parse a single character using radix 16 (hexadecimal).
-     * @param c the character to be parsed.
-     * @return the hexadecimal value represented by the character.
+     * Process commands until one of them produces a note, and make it the current note.
+     * At the end of the program, jump back to the loop section until every pass has been played.
+     * @return If there is a next note, return true, false if there are no commands left.
      * */
-    private static byte parseSingleCharHex(char c) {
-        if (c >= '0' && c <= '9') {
-            return (byte) (c - '0');
-        } else if (c >= 'A' && c <= 'F') {
-            return (byte) (c - ('A' - 10));
-        } else if (c >= 'a' && c <= 'f') {
-            return (byte) (c - ('a' - 10));
+    private boolean next() {
+        while (true) {
+            if (pc == program.size()) {
+                if (--loopsLeft <= 0) break;
+                pc = program.loopStart(); // The next pass starts on the sample right after the previous one
+                continue;
+            }
+            int i = pc++;
+            Generator g = process(i);
+            if (g != null) {
+                note = g;
+                notePos = 0;
+                noteLength = sampleLength(ms(i));
+                return true;
+            }
         }
-        return 0;
+        note = null;
+        notePos = noteLength = 0;
+        return false;
     }
     /**
      * For each command:
-     * 1. Decode it.
+     * 1. Look up its opcode.
      * 2. Set the appropriate waveform (if required).
-     * 3. Create the sample if it is not already created or retrieve it from the cache.
-     * 4. Play it back.
-     * @param l The command to parse and run.
+     * 3. Create the sample if it is not already created or retrieve it from the cache,
+     *    or prepare to stream it if it is too long to be cached.
+     * 4. Return it so that it can be played back.
+     * @param i The index of the command to run.
+     * @return The note corresponding to the command, or null if the command does not produce a sample.
+     * */
+    private Generator process(int i) {
+        Program p = program;
+        switch (p.ops[i]) {
+            case Program.WAVEFORM:
+                wfPtr = (byte) p.args[i];
+                return null;
+            case Program.END_OPENING: // The loop section starts after this, see next()
+                return null;
+        }
+        if (!isCached(i)) return timed(streamed(i, wfPtr), i); // Long notes are generated as the mixer asks for them
+        FloatBuffer s = lookup(i, wfPtr); // Here, the sample is finally handed to the mixer
+        if (s.hasArray()) return (buffer, offset, from, to) -> System.arraycopy(s.array(), s.arrayOffset() + from, buffer, offset, to - from);
+        return (buffer, offset, from, to) -> { // Read straight from the mapped file
+            FloatBuffer view = s.duplicate();
+            view.position(from);
+            view.get(buffer, offset, to - from);
+        };
+    }
+    /**
+     * Determine if the sample of a command is generated in full and cached, or streamed.
+     * @param i The index of a TONE or NOISE command.
+     * @return If the sample is cached, return true, false if it is streamed.
+     * */
+    private boolean isCached(int i) {
+        return sampleLength(ms(i)) <= MAX_CACHED_FRAMES;
+    }
+    /**
+     * Get how long a command plays at the playback speed of the PSG. A faster speed shortens the
+     * notes but keeps their pitch, so a sample is generated for each speed.
+     * @param i The index of a TONE or NOISE command.
+     * @return The duration in milliseconds.
+     * */
+    private double ms(int i) {
+        return program.ms[i] / playbackSpeed;
+    }
+    /**
+     * Get the sample of a command from the cache, loading it from the disk cache or generating it if it is not cached yet.
+     * @param i The index of a TONE or NOISE command.
+     * @param wfPtr The index of the waveform that is in use when the command runs.
+     * @return The sample.
+     * */
+    private FloatBuffer lookup(int i, int wfPtr) {
+        return cache.get(new Key(waveformId(i, wfPtr), sampleRate, playbackSpeed, program.ids[i]), k -> { // If the sample is not found, create it
+            String description = disk == null ? null : description(i, wfPtr);
+            String name = description == null ? null : DiskCache.name(description);
+            FloatBuffer mapped = name == null ? null : disk.load(name);
+            if (mapped != null) return mapped;
+            Metrics metrics = Instrumentation.metrics;
+            long start = metrics == Metrics.NONE ? 0 : System.nanoTime();
+            float[] sample = generate(generator(i, wfPtr), ms(i));
+            if (metrics != Metrics.NONE) metrics.synthesized(getName(), i, sample.length, System.nanoTime() - start);
+            if (name != null) disk.store(name, sample);
+            return FloatBuffer.wrap(sample);
+        });
+    }
+    /**
+     * Get the generator of a streamed command, creating it the first time the command is played
+     * with the current settings.
+     * @param i The index of a TONE or NOISE command.
+     * @param wfPtr The index of the waveform that is in use when the command runs.
+     * @return The generator.
+     * */
+    private Generator streamed(int i, int wfPtr) {
+        Streamed[] s = streamed;
+        if (s == null) streamed = s = new Streamed[program.size()];
+        int id = waveformId(i, wfPtr), version = synthesis.get();
+        Streamed g = s[i];
+        if (g == null || g.waveform != id || g.synthesis != version) s[i] = g = new Streamed(generator(i, wfPtr), id, version);
+        return g.generator;
+    }
+    /**
+     * Report the synthesis time of every block of a streamed command to the installed metrics.
+     * @param g The generator of the command.
+     * @param i The index of the command.
+     * @return The generator, unchanged if no metrics are installed.
      * */
-    private void process(Command l) { // l is the split line that contains an instruction to play a tone/white noise
-        if (l.strings[0].charAt(0) == 'c') { // A = 10, B = 11, C = 12, D = 13, E = 14, F = 15
-            wfPtr = parseSingleCharHex(l.strings[1].charAt(0));
+    private Generator timed(Generator g, int i) {
+        Metrics metrics = Instrumentation.metrics;
+        if (metrics == Metrics.NONE) return g;
+        String sound = name;
+        return (buffer, offset, from, to) -> {
+            long start = System.nanoTime();
+            g.generate(buffer, offset, from, to);
+            metrics.synthesized(sound, i, to - from, System.nanoTime() - start);
+        };
+    }
+    /**
+     * Describe everything that determines the sample of a command, so that it can be found in the
+     * disk cache by another JVM.
+     * @param i The index of a TONE or NOISE command.
+     * @param wfPtr The index of the waveform that is in use when the command runs.
+     * @return The description, or null if the waveform has no stable name.
+     * */
+    private String description(int i, int wfPtr) {
+        Program p = program;
+        PSG.Waveform wf = waveform(i, wfPtr);
+        String wfName = wf == null ? "noise" : stableNames.get(wf);
+        if (wfName == null) return null; // A waveform made at run time cannot be recognized in another JVM
+        double freq = p.ops[i] == Program.TONE && percussion && (p.flags[i] & Program.EXTENDED) == 0 ? 440.0 : p.freqs[i];
+        return wfName + "|" + wavetables + "|" + Noise.getSeed() + "|" + sampleRate + "|" + p.ops[i] + "|" + p.args[i]
+                + "|" + freq + "|" + p.amps[i] + "|" + ms(i) + "|" + p.flags[i] + "|" + Arrays.toString(p.params[i])
+                + (p.chords[i] == null ? "" : "|" + VOICES + "|" + Arrays.toString(p.chords[i]));
+    }
+    /**
+     * Get the generator of a command.
+     * @param i The index of a TONE or NOISE command.
+     * @param wfPtr The index of the waveform that is in use when the command runs.
+     * @return The generator.
+     * */
+    private Generator generator(int i, int wfPtr) {
+        Program p = program;
+        if (p.ops[i] == Program.NOISE) {
+            return whiteNoise(p.args[i], p.amps[i], ms(i), (p.flags[i] & Program.EXTENDED) != 0, (p.flags[i] & Program.SHORT) != 0, p.params[i]);
+        } else if ((p.flags[i] & Program.EXTENDED) != 0) {
+            if (p.chords[i] != null) return chord(waveform(i, wfPtr), p.chords[i], p.amps[i], ms(i), (p.flags[i] & Program.ATTENUATE) != 0, (p.flags[i] & Program.VIBRATO) != 0, p.params[i]);
+            return tone(waveform(i, wfPtr), p.freqs[i], p.amps[i], ms(i), (p.flags[i] & Program.ATTENUATE) != 0, (p.flags[i] & Program.VIBRATO) != 0, p.params[i]);
+        } else if (p.chords[i] != null && !percussion) {
+            return chord(waveform(i, wfPtr), p.chords[i], p.amps[i], ms(i), false, false, p.params[i]);
         } else {
-            boolean noise = l.strings[0].charAt(0) == 'w';
-            PSG.Waveform currentWF = null; // null used to represent white noise waveform
-            if (percussion) {
-                currentWF = PERCUSSION_WAVEFORMS[parseSingleCharHex(l.strings[0].charAt(0)) % PERCUSSION_WAVEFORMS.length];
-            } else if (!noise) {
-                currentWF = waveforms[wfPtr];
-            }
-            Map<Command, SoftReference<byte[]>> wfCache = cache.get(currentWF); // remember this is a POINTER to a map
-            SoftReference<byte[]> sample = wfCache.getOrDefault(l, null); // Get the sample corresponding to l
-            if (sample == null) { // If the sample is not found, create it. Decode the command here.
-                double amp = Double.parseDouble(l.strings[1]);
-                double timeMS = Double.parseDouble(l.strings[2]);
-                byte[] s;
-                if (noise) {
-                    s = genWhiteNoise(l.strings[0].length() > 1 ? Integer.parseInt(l.strings[0].substring(1)) : 1, amp, timeMS, l.strings.length == 4);
-                } else if (l.strings.length == 4) {
-                    s = genTone(currentWF, Double.parseDouble(l.strings[0]), amp, timeMS, l.strings[3].contains("a"), l.strings[3].contains("v"));
-                } else {
-                    s = genTone(currentWF, percussion ? 440.0 : Double.parseDouble(l.strings[0]), amp, timeMS, false, false);
+            return tone(waveform(i, wfPtr), percussion ? 440.0 : p.freqs[i], p.amps[i], ms(i), false, false, p.params[i]);
+        }
+    }
+    /**
+     * Get the waveform a command is played with.
+     * @param i The index of a TONE or NOISE command.
+     * @param wfPtr The index of the waveform that is in use when the command runs.
+     * @return The waveform, or null for white noise.
+     * */
+    private PSG.Waveform waveform(int i, int wfPtr) {
+        if (program.ops[i] == Program.NOISE) return null;
+        return percussion ? PERCUSSION_WAVEFORMS[program.args[i] % PERCUSSION_WAVEFORMS.length] : waveforms[wfPtr];
+    }
+    /**
+     * Get the cache id of the waveform a command is played with.
+     * @param i The index of a TONE or NOISE command.
+     * @param wfPtr The index of the waveform that is in use when the command runs.
+     * @return The id of the waveform (0 for white noise).
+     * */
+    private int waveformId(int i, int wfPtr) {
+        if (program.ops[i] == Program.NOISE) return 0;
+        return percussion ? PERCUSSION_IDS[program.args[i] % PERCUSSION_IDS.length] : ids[wfPtr];
+    }
+    /**
+     * Fill the cache with the sample of every distinct command that is played the next time
+     * the PSG is started. The samples are generated in parallel. Streamed commands are skipped.
+     * */
+    public void prerender() {
+        Program p = program;
+        Map<Key, Runnable> tasks = new HashMap<>();
+        int ptr = 0;
+        for (int pass = 0, from = 0; pass <= Math.min(loops, 2); pass++, from = p.loopStart()) { // The opening, then the loop section with the waveform it starts with on the first and later passes
+            for (int i = from; i < p.size(); i++) {
+                if (p.ops[i] == Program.WAVEFORM) {
+                    ptr = p.args[i];
+                } else if ((p.ops[i] == Program.TONE || p.ops[i] == Program.NOISE) && isCached(i)) {
+                    int index = i, current = ptr;
+                    tasks.putIfAbsent(new Key(waveformId(i, ptr), sampleRate, playbackSpeed, p.ids[i]), () -> lookup(index, current));
                 }
-                sample = new SoftReference<>(s);
-                wfCache.put(l, sample);
             }
-            channel.write(sample.get(), 0, Objects.requireNonNull(sample.get()).length); // Here, the sample is finally played back by the sound channel
         }
+        ParallelRenderer.runAll(tasks.values());
+    }
+    /**
+     * Create a PSG that plays the same program with the same settings, but has its own playback state.
+     * Nothing is parsed or generated: the program and the sample cache are shared.
+     * @return The copy.
+     * */
+    public CachedPSG copy() {
+        CachedPSG copy = new CachedPSG(program, name, waveforms.clone());
+        copy.percussion = percussion;
+        copy.loudness = loudness;
+        copy.playbackSpeed = playbackSpeed;
+        copy.loops = loops;
+        copy.sampleRate = sampleRate;
+        copy.samplesPerMs = samplesPerMs;
+        copy.starts = starts; // Never modified once built
+        return copy;
     }
     /**
      * Stop the PSG.
      * */
     public void stop() {
-        channel.drain();
-        channel.stop();
         running = false;
     }
     /**
@@ -218,6 +539,7 @@ public class CachedPSG implements PSG {
      * */
     public CachedPSG setPercussion(boolean percussion) {
         this.percussion = percussion;
+        streamed = null;
         return this;
     }
     /**
@@ -251,13 +573,17 @@ public class CachedPSG implements PSG {
         return percussion;
     }
     /**
-     * Set the playback speed of the PSG.
-     * @param playbackSpeed The new playback speed.
+     * Set the playback speed of the PSG. The notes are shortened or lengthened, their pitch does not change.
+     * Each speed has samples of its own in the cache, see Key.
+     * @param playbackSpeed The new playback speed. Must be positive.
      * @return The PSG instance itself.
      * */
     public CachedPSG setPlaybackSpeed(double playbackSpeed) {
-        if (playbackSpeed != 0)
+        if (playbackSpeed > 0 && playbackSpeed != this.playbackSpeed) {
             this.playbackSpeed = playbackSpeed;
+            starts = null;
+            streamed = null;
+        }
         return this;
     }
     /**
@@ -289,7 +615,80 @@ public class CachedPSG implements PSG {
      * */
     public int getLength()
     {
-    	return commands.size();
+    	return program.size();
+    }
+    /**
+     * Get the number of samples this PSG renders the next time it is started, at its current playback speed and sample rate.
+     * @return The duration in frames.
+     * */
+    public long getFrameLength() {
+        long[] s = timeline();
+        int loopStart = program.loopStart();
+        return s[loopStart] + loops * (s[s.length - 1] - s[loopStart]);
+    }
+    /**
+     * Get the command that plays at a frame, counting the passes of the loop section.
+     * Commands that take no time (waveform changes, the end of the opening) are never returned.
+     * @param frame The frame, from the start of the PSG.
+     * @return The index of the command, or -1 if the frame is outside the PSG.
+     * */
+    public int getCommandAt(long frame) {
+        long[] s = timeline();
+        int loopStart = program.loopStart();
+        long loop = s[s.length - 1] - s[loopStart];
+        if (frame < 0 || frame >= s[loopStart] + loops * loop) return -1;
+        frame = fold(frame);
+        int lo = 0, hi = s.length - 1; // Find the last command that starts at or before the frame
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (s[mid] <= frame) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+    /**
+     * Map a frame in a later pass of the loop section onto the same frame of the first pass.
+     * @param frame A frame within the PSG.
+     * @return The frame within the opening or the first pass.
+     * */
+    private long fold(long frame) {
+        long[] s = timeline();
+        int loopStart = program.loopStart();
+        return frame < s[loopStart] ? frame : s[loopStart] + (frame - s[loopStart]) % (s[s.length - 1] - s[loopStart]);
+    }
+    /**
+     * Get the number of frames before each command at the current playback speed and sample rate.
+     * It is computed once and kept until either of them changes.
+     * @return The prefix sums of the lengths of the commands, with the total at the end.
+     * */
+    private long[] timeline() {
+        long[] s = starts;
+        if (s == null) {
+            s = new long[program.size() + 1];
+            for (int i = 0; i < program.size(); i++) {
+                s[i + 1] = s[i];
+                if (program.ops[i] == Program.TONE || program.ops[i] == Program.NOISE) s[i + 1] += sampleLength(ms(i));
+            }
+            starts = s;
+        }
+        return s;
+    }
+    /**
+     * Set how many times the loop section (everything after "end opening") is played after the opening.
+     * The passes follow each other without a gap.
+     * @param loops The number of passes, at least 1.
+     * @return The PSG instance itself.
+     * */
+    public CachedPSG setLoops(int loops) {
+        this.loops = Math.max(1, loops);
+        return this;
+    }
+    /**
+     * Get how many times the loop section is played after the opening.
+     * @return The number of passes.
+     * */
+    public int getLoops() {
+        return loops;
     }
     /**
      * Set a waveform at the desired index.
@@ -298,83 +697,500 @@ public class CachedPSG implements PSG {
      * @return The PSG instance itself.
      * */
     public CachedPSG setWaveform(int index, PSG.Waveform waveform) {
-        if (index >= waveforms.length) waveforms = Arrays.copyOf(waveforms, index + 1);
+        if (index >= waveforms.length) {
+            waveforms = Arrays.copyOf(waveforms, index + 1);
+            ids = Arrays.copyOf(ids, index + 1);
+        }
         waveforms[index] = waveform;
+        ids[index] = waveformId(waveform);
         return this;
     }
     /**
-     * Generate a sample representing a tone with the given waveform, frequency, amplitude, and duration and whether to attenuate the tone over time and add vibrato.
+     * Generate a canonical sample representing a tone with the given waveform, frequency, amplitude, and duration and whether to attenuate the tone over time and add vibrato.
      * @param wf The waveform to use.
      * @param freq The frequency of the tone in Hz.
      * @param amp The amplitude from 0 to 1.
      * @param ms The duration in milliseconds.
      * @param attenuate Attenuate the tone over time.
      * @param vibrato Add vibrato.
-     * @return A sample (as a byte[]) representing the tone.
-     * */
-    private byte[] genTone(PSG.Waveform wf, double freq, double amp, double ms, boolean attenuate, boolean vibrato) {
-        amp = Math.min(1, Math.abs(amp * loudness)); // clamp amplitude
-        ms /= playbackSpeed; // scale duration by playback speed
-        byte[] sample = emptySample(ms);
-        double period = SAMPLE_RATE_HZ / freq;
-        double b = TWO_PI / period;
-        for (int i = 0; i < sample.length; i++) {
-            double x = b * i, n = i / (double) sample.length;
-            if (wf instanceof PSG.DynamicWaveform) ((PSG.DynamicWaveform) wf).setN(n); // Set dynamic waveform n
-            if (vibrato) x += Math.sin(n * ms * 3e-2) * 1.75; // Apply vibrato algorithm using sine wave
-            double f = wf.output(x); // Get output at that x of that waveform
-            if (attenuate) f /= Math.exp(x / (1.5 * ms > 1000 ? ms : 1000)); // Use exponential decay for attenuation
-            sample[i] = (byte) (Byte.MAX_VALUE * Math.max(Math.min(f * amp, 1), -1)); // Store output value in sample
-        }
+     * @return A sample (as a float[]) representing the tone.
+     * */
+    float[] genTone(PSG.Waveform wf, double freq, double amp, double ms, boolean attenuate, boolean vibrato) {
+        return generate(tone(wf, freq, amp, ms, attenuate, vibrato, null), ms);
+    }
+    /**
+     * Generate a canonical sample representing white noise with the given stepdown, amplitude, and duration and whether to attenuate the white noise.
+     * @param stepDown The number of times to skip generating a new random byte to make the white noise sound lower-pitched. Minimum is 1.
+     * @param amp The amplitude from 0 to 1.
+     * @param ms The duration in milliseconds.
+     * @param attenuate Attenuate the tone over time.
+     * @return A sample (as a float[]) representing the white noise.
+     * */
+    float[] genWhiteNoise(int stepDown, double amp, double ms, boolean attenuate) {
+        return genWhiteNoise(stepDown, amp, ms, attenuate, false);
+    }
+    /**
+     * Generate a canonical sample representing white noise or NES short-mode noise with the given stepdown, amplitude, and duration and whether to attenuate the noise.
+     * @param stepDown The number of times to skip generating a new random byte to make the white noise sound lower-pitched. Minimum is 1.
+     * @param amp The amplitude from 0 to 1.
+     * @param ms The duration in milliseconds.
+     * @param attenuate Attenuate the tone over time.
+     * @param shortMode Use the 93-step sequence of the NES noise channel instead of white noise.
+     * @return A sample (as a float[]) representing the noise.
+     * */
+    float[] genWhiteNoise(int stepDown, double amp, double ms, boolean attenuate, boolean shortMode) {
+        return generate(whiteNoise(stepDown, amp, ms, attenuate, shortMode, null), ms);
+    }
+    /**
+     * Generate a whole sample.
+     * @param g The generator of the note.
+     * @param ms The duration in milliseconds.
+     * @return The sample. It is rendered in parallel chunks if it is long enough; every generator is a pure function of the index, dynamic waveforms included.
+     * */
+    private float[] generate(Generator g, double ms) {
+        float[] sample = emptySample(ms);
+        ParallelRenderer.render(sample.length, (from, to) -> g.generate(sample, from, from, to));
         return sample;
+    }
+    /**
+     * Create the generator of the canonical samples of a tone with the given waveform, frequency, amplitude, and duration and whether to attenuate the tone over time and add vibrato.
+     * The envelopes are computed by recurrence, see Envelope.
+     * @param wf The waveform to use.
+     * @param freq The frequency of the tone in Hz.
+     * @param amp The amplitude from 0 to 1.
+     * @param ms The duration in milliseconds.
+     * @param attenuate Attenuate the tone over time.
+     * @param vibrato Add vibrato.
+     * @param params The key=value parameters of the command (see Program.PARAMETERS), or null.
+     * @return The generator of the tone.
+     * */
+    Generator tone(PSG.Waveform wf, double freq, double amp, double ms, boolean attenuate, boolean vibrato, double[] params) {
+        amp = Math.min(1, Math.abs(amp)); // clamp amplitude
+        int length = sampleLength(ms);
+        double period = sampleRate / freq;
+        double b = TWO_PI / period, a = amp;
+        double decay = b / (1.5 * ms > 1000 ? ms : 1000); // Exponential decay for attenuation, per sample
+        boolean vib = vibrato || !Double.isNaN(param(params, Program.VIBRATO_RATE, Double.NaN)) || !Double.isNaN(param(params, Program.VIBRATO_DEPTH, Double.NaN)); // A vibrato parameter turns vibrato on
+        double vibOmega = TWO_PI * param(params, Program.VIBRATO_RATE, VIBRATO_HZ) / sampleRate, vibDepth = param(params, Program.VIBRATO_DEPTH, VIBRATO_DEPTH);
+        Wavetable wt = wavetables ? Wavetable.forWaveform(wf) : null;
+        float[] table = wt == null ? null : wt.table(freq, sampleRate);
+        Cursors cursors = new Cursors(() -> new Envelope[] {attenuate ? Envelope.decay(decay) : null, vib ? Envelope.lfo(vibOmega, vibDepth) : null, gain(params, length)});
+        return (buffer, offset, from, to) -> { // Every value only depends on i, so ranges can be rendered independently
+            double inc = 1 / period, phase = from * inc; // Phase accumulator in periods, used with the wavetable
+            phase -= Math.floor(phase);
+            Envelope[] envelopes = cursors.acquire();
+            Envelope att = envelopes[0], lfo = envelopes[1], gain = envelopes[2];
+            double g = att == null ? 1 : att.seek(from), v = lfo == null ? 0 : lfo.seek(from), h = gain == null ? 1 : gain.seek(from);
+            double[][] block = waveBuffer.get();
+            double[] xs = block[0], ns = block[1], fs = block[2];
+            for (int start = from; start < to; start += xs.length) {
+                int end = Math.min(to, start + xs.length);
+                for (int i = start; i < end; i++) {
+                    if (table != null) { // Get output at that phase of the wavetable
+                        fs[i - start] = Wavetable.lookup(table, phase + v / TWO_PI);
+                        if ((phase += inc) >= 1) phase -= 1;
+                    } else {
+                        xs[i - start] = b * i + v;
+                        ns[i - start] = i / (double) length; // How far through the note, for dynamic waveforms
+                    }
+                    if (lfo != null) v = lfo.next(); // Vibrato bends the phase with a sine wave
+                }
+                if (table == null) wf.output(xs, ns, fs, end - start); // Get output at those x of that waveform, a block at a time
+                for (int i = start; i < end; i++) {
+                    buffer[offset + i - from] = (float) Math.max(Math.min(fs[i - start] * g * h * a, 1), -1); // Store output value in buffer
+                    if (att != null) g = att.next();
+                    if (gain != null) h = gain.next();
+                }
+            }
+            cursors.release(envelopes);
+        };
     } // -0.92375 for 12.5%, -0.5 for 33.3%, -Math.sqrt(0.5) for 25%
     /**
-     * Generate a sample representing white noise with the given stepdown, amplitude, and duration and whether to attenuate the white noise.
+     * Create the generator of the canonical samples of a chord: one tone per frequency, each with the
+     * given amplitude, as if they were played by separate sequences. Every range is rendered by the
+     * voice pool of the thread: each note is started on a voice, stealing one when the pool is full,
+     * the oscillator of every voice fills its row of the block, and one pass over the block mixes the
+     * voices with their envelopes. Where the notes could add up past full scale, the chord is scaled
+     * down so that it does not clip, and the mix is clamped like a tone. Rendering allocates nothing;
+     * a streamed chord keeps its generator (see streamed()), so playing it again allocates nothing either.
+     * @param wf The waveform to use.
+     * @param freqs The frequencies of the notes of the chord in Hz.
+     * @param amp The amplitude of each note from 0 to 1.
+     * @param ms The duration in milliseconds.
+     * @param attenuate Attenuate the notes over time.
+     * @param vibrato Add vibrato.
+     * @param params The key=value parameters of the command (see Program.PARAMETERS), or null.
+     * @return The generator of the chord.
+     * */
+    Generator chord(PSG.Waveform wf, double[] freqs, double amp, double ms, boolean attenuate, boolean vibrato, double[] params) {
+        amp = Math.min(1, Math.abs(amp)); // clamp amplitude
+        int notes = freqs.length, length = sampleLength(ms);
+        double[] bs = new double[notes], incs = new double[notes], decays = new double[notes];
+        float[][] tables = new float[notes][];
+        Wavetable wt = wavetables ? Wavetable.forWaveform(wf) : null;
+        for (int k = 0; k < notes; k++) { // The same oscillator as tone() for every note
+            double period = sampleRate / freqs[k];
+            bs[k] = TWO_PI / period;
+            incs[k] = 1 / period;
+            decays[k] = bs[k] / (1.5 * ms > 1000 ? ms : 1000);
+            tables[k] = wt == null ? null : wt.table(freqs[k], sampleRate);
+        }
+        double a = amp * Math.min(1, 1 / (Math.min(notes, VOICES) * amp)); // Headroom: the sum of the notes never exceeds full scale
+        boolean vib = vibrato || !Double.isNaN(param(params, Program.VIBRATO_RATE, Double.NaN)) || !Double.isNaN(param(params, Program.VIBRATO_DEPTH, Double.NaN));
+        double vibOmega = TWO_PI * param(params, Program.VIBRATO_RATE, VIBRATO_HZ) / sampleRate, vibDepth = param(params, Program.VIBRATO_DEPTH, VIBRATO_DEPTH);
+        Cursors cursors = new Cursors(() -> { // The vibrato and the gain are shared, the attenuation depends on the frequency of the note
+            Envelope[] envelopes = new Envelope[2 + notes];
+            envelopes[0] = vib ? Envelope.lfo(vibOmega, vibDepth) : null;
+            envelopes[1] = gain(params, length);
+            for (int k = 0; k < notes; k++) envelopes[2 + k] = attenuate ? Envelope.decay(decays[k]) : null;
+            return envelopes;
+        });
+        return (buffer, offset, from, to) -> {
+            VoicePool pool = voicePool.get();
+            pool.clear();
+            for (int k = 0; k < notes; k++) pool.noteOn(k, freqs[k]);
+            Envelope[] envelopes = cursors.acquire();
+            Envelope lfo = envelopes[0], gain = envelopes[1];
+            double v = lfo == null ? 0 : lfo.seek(from), h = gain == null ? 1 : gain.seek(from);
+            for (int s = 0; s < pool.active; s++) {
+                int k = pool.notes[s];
+                double phase = from * incs[k];
+                pool.phases[s] = phase - Math.floor(phase);
+                pool.levels[s] = envelopes[2 + k] == null ? 1 : envelopes[2 + k].seek(from);
+            }
+            double[][] block = waveBuffer.get();
+            double[] xs = block[0], ns = block[1], vs = block[2];
+            for (int start = from; start < to; start += vs.length) {
+                int n = Math.min(to, start + vs.length) - start;
+                for (int i = 0; i < n; i++) {
+                    vs[i] = v;
+                    ns[i] = (start + i) / (double) length; // How far through the note, for dynamic waveforms
+                    if (lfo != null) v = lfo.next();
+                }
+                for (int s = 0; s < pool.active; s++) { // The oscillator of every voice
+                    int k = pool.notes[s];
+                    double[] row = pool.rows[s];
+                    if (tables[k] != null) {
+                        double phase = pool.phases[s], inc = incs[k];
+                        for (int i = 0; i < n; i++) {
+                            row[i] = Wavetable.lookup(tables[k], phase + vs[i] / TWO_PI);
+                            if ((phase += inc) >= 1) phase -= 1;
+                        }
+                        pool.phases[s] = phase;
+                    } else {
+                        for (int i = 0; i < n; i++) xs[i] = bs[k] * (start + i) + vs[i];
+                        wf.output(xs, ns, row, n);
+                    }
+                }
+                for (int i = 0; i < n; i++) { // Mix the voices in one pass
+                    double sum = 0;
+                    for (int s = 0; s < pool.active; s++) {
+                        Envelope att = envelopes[2 + pool.notes[s]];
+                        sum += pool.rows[s][i] * pool.levels[s];
+                        if (att != null) pool.levels[s] = att.next();
+                    }
+                    buffer[offset + start + i - from] = (float) Math.max(Math.min(sum * h * a, 1), -1);
+                    if (gain != null) h = gain.next();
+                }
+            }
+            cursors.release(envelopes);
+        };
+    }
+    /**
+     * Create the generator of the canonical samples of white noise with the given stepdown, amplitude, and duration and whether to attenuate the white noise.
+     * Every step takes the value of Noise at its index, so the noise is the same however the sample is split into ranges.
      * @param stepDown The number of times to skip generating a new random byte to make the white noise sound lower-pitched. Minimum is 1.
      * @param amp The amplitude from 0 to 1.
      * @param ms The duration in milliseconds.
      * @param attenuate Attenuate the tone over time.
-     * @return A sample (as a byte[]) representing the white noise.
+     * @param shortMode Use the 93-step sequence of the NES noise channel instead of white noise.
+     * @param params The key=value parameters of the command (see Program.PARAMETERS), or null.
+     * @return The generator of the white noise.
      * */
-    private byte[] genWhiteNoise(int stepDown, double amp, double ms, boolean attenuate) {
-        amp = Math.min(1, Math.abs(amp * loudness)); // clamp amplitude
+    Generator whiteNoise(int stepDown, double amp, double ms, boolean attenuate, boolean shortMode, double[] params) {
+        amp = Math.min(1, Math.abs(amp)); // clamp amplitude
         stepDown = Math.max(1, Math.abs(stepDown)); // clamp stepdown
-        ms /= playbackSpeed; // scale duration by playback speed
-        byte[] sample = emptySample(ms);
-        double f = 0;
-        for (int i = 0; i < sample.length; i++) {
-            double n = i / (double) sample.length;
-            if (i % stepDown == 0) f = Math.random(); // The stepdown is the number of times to skip generating a new random byte to make the white noise sound lower-pitched. Minimum is 1.
-            if (attenuate) f /= Math.exp(2 * n); // Use exponential decay for attenuation
-            sample[i] = (byte) (Byte.MAX_VALUE * Math.max(Math.min(f * amp, 1), -1)); // Store output value in sample
-        }
-        return sample;
+        int length = sampleLength(ms), step = Math.max(1, Math.round(stepDown * sampleRate / NOISE_REFERENCE_RATE)); // Keep the pitch of the noise at every sample rate
+        double a = amp;
+        long seed = Noise.getSeed();
+        Cursors cursors = new Cursors(() -> new Envelope[] {attenuate ? Envelope.decay(2.0 / length) : null, gain(params, length)});
+        return (buffer, offset, from, to) -> {
+            int start = from - from % step; // Start at the step that holds the first value of the range
+            Envelope[] envelopes = cursors.acquire();
+            Envelope att = envelopes[0], gain = envelopes[1];
+            double f = 0, m = att == null ? 1 : att.seek(start), h = gain == null ? 1 : gain.seek(from);
+            for (int i = start; i < to; i++) {
+                if (i % step == 0) f = shortMode ? Noise.nes(seed, i / step, true) : Noise.white(seed, i / step); // The stepdown is the number of times to skip generating a new random byte to make the white noise sound lower-pitched. Minimum is 1.
+                if (att != null) { // Use exponential decay for attenuation. It compounds within a step: f /= exp(2 * i / length)
+                    f *= m;
+                    m = att.next();
+                }
+                if (i >= from) {
+                    buffer[offset + i - from] = (float) Math.max(Math.min(f * h * a, 1), -1); // Store output value in buffer
+                    if (gain != null) h = gain.next();
+                }
+            }
+            cursors.release(envelopes);
+        };
+    }
+    /**
+     * Create the envelope that scales the amplitude of a note: the ADSR envelope and the tremolo
+     * given by the parameters of its command.
+     * @param params The key=value parameters of the command, or null.
+     * @param length The length of the note in samples.
+     * @return The envelope, or null if the command has neither.
+     * */
+    private Envelope gain(double[] params, int length) {
+        if (params == null) return null;
+        boolean adsr = false, tremolo = false;
+        for (int p = Program.ATTACK; p <= Program.RELEASE; p++) adsr |= !Double.isNaN(params[p]);
+        for (int p = Program.TREMOLO_RATE; p <= Program.TREMOLO_DEPTH; p++) tremolo |= !Double.isNaN(params[p]);
+        if (!adsr && !tremolo) return null;
+        Envelope env = adsr ? Envelope.adsr(sampleLength(param(params, Program.ATTACK, 0)), sampleLength(param(params, Program.DECAY, 0)),
+                param(params, Program.SUSTAIN, 1), sampleLength(param(params, Program.RELEASE, 0)), length) : null;
+        Envelope lfo = tremolo ? Envelope.lfo(TWO_PI * param(params, Program.TREMOLO_RATE, TREMOLO_HZ) / sampleRate, param(params, Program.TREMOLO_DEPTH, TREMOLO_DEPTH) / 2) : null;
+        if (lfo == null) return env;
+        double centre = 1 - param(params, Program.TREMOLO_DEPTH, TREMOLO_DEPTH) / 2; // The tremolo swings between 1 - depth and 1
+        return new Envelope() {
+            double seek(long i) {
+                return (env == null ? 1 : env.seek(i)) * (centre + lfo.seek(i));
+            }
+            double next() {
+                return (env == null ? 1 : env.next()) * (centre + lfo.next());
+            }
+        };
+    }
+    /**
+     * Get a parameter of a command.
+     * @param params The key=value parameters of the command, or null.
+     * @param index The index of the parameter.
+     * @param fallback The value if the parameter is not given.
+     * @return The value.
+     * */
+    private static double param(double[] params, int index, double fallback) {
+        return params == null || Double.isNaN(params[index]) ? fallback : params[index];
     }
     /**
      * Generate an empty sample based on the desired duration.
      * @param ms The duration of the tone in milliseconds.
-     * @return An empty sample (as a byte[]).
+     * @return An empty sample (as a float[]).
+     * */
+    private float[] emptySample(double ms) {
+        return new float[sampleLength(ms)];
+    }
+    /**
+     * Get the number of samples in a sample of the desired duration.
+     * @param ms The duration in milliseconds.
+     * @return The number of samples.
+     * */
+    private int sampleLength(double ms) {
+        return (int) (ms * samplesPerMs);
+    }
+    /**
+     * Set the sample rate the PSG renders at. The Mixer sets it to the rate of its output before it starts the PSG.
+     * @param sampleRate The sample rate in Hz, e.g. 22050, 44100 or 48000.
+     * @return The PSG instance itself.
+     * */
+    public CachedPSG setSampleRate(float sampleRate) {
+        if (sampleRate > 0 && sampleRate < 1 << 20 && sampleRate != this.sampleRate) {
+            this.sampleRate = sampleRate;
+            samplesPerMs = sampleRate / 1000f;
+            starts = null;
+            streamed = null;
+        }
+        return this;
+    }
+    /**
+     * Get the sample rate the PSG renders at.
+     * @return The sample rate in Hz.
+     * */
+    public float getSampleRate() {
+        return sampleRate;
+    }
+    /**
+     * Choose how tones of the built-in SQUARE, TRIANGLE and SAWTOOTH waveforms are generated.
+     * Samples generated the other way are removed from the cache.
+     * @param enabled Read them from band-limited wavetables (true) or compute them with the exact formulas (false).
+     * */
+    public static void setWavetables(boolean enabled) {
+        if (wavetables != enabled) {
+            wavetables = enabled;
+            synthesis.incrementAndGet();
+            cache.clear();
+        }
+    }
+    /**
+     * Set the seed of all noise, i.e. white noise commands and the SNARE waveform. Renders with the
+     * same seed are identical. Samples generated with another seed are removed from the cache.
+     * @param seed The seed.
+     * */
+    public static void setNoiseSeed(long seed) {
+        if (Noise.getSeed() != seed) {
+            Noise.setSeed(seed);
+            synthesis.incrementAndGet();
+            cache.clear();
+        }
+    }
+    /**
+     * Determine how tones of the built-in waveforms are generated.
+     * @return If they are read from wavetables, return true, false otherwise.
+     * */
+    public static boolean isWavetables() {
+        return wavetables;
+    }
+    /**
+     * Get the cache shared by all CachedPSG instances, e.g. to read its statistics.
+     * @return The sample cache.
+     * */
+    static SampleCache<?, FloatBuffer> getCache() {
+        return cache;
+    }
+    /**
+     * Get the id of a waveform, used in cache keys.
+     * @param wf The waveform.
+     * @return The id of the waveform.
      * */
-    private static byte[] emptySample(double ms) {
-        return new byte[(int) (ms * SAMPLE_RATE_KHZ)];
+    private static int waveformId(PSG.Waveform wf) {
+        return waveformIds.computeIfAbsent(wf, w -> nextWaveformId.getAndIncrement());
+    }
+    /**
+     * @author Shreyas Raghunath
+     * The envelopes of a note, created once with its generator and reused by every range of the
+     * note that is rendered on the thread playing it, so streaming a long note allocates nothing.
+     * A range rendered at the same time on another thread, e.g. a chunk of ParallelRenderer, gets
+     * envelopes of its own. Every range seeks them, so reused envelopes carry nothing over.
+     * */
+    private static final class Cursors {
+        private final Supplier<Envelope[]> factory;
+        private final Envelope[] own;
+        private final AtomicBoolean busy = new AtomicBoolean();
+
+        Cursors(Supplier<Envelope[]> factory) {
+            this.factory = factory;
+            own = factory.get();
+        }
+        /**
+         * @return The envelopes of the note, or new ones if they are in use by another thread.
+         * */
+        Envelope[] acquire() {
+            return busy.compareAndSet(false, true) ? own : factory.get();
+        }
+        /**
+         * @param envelopes The envelopes returned by acquire().
+         * */
+        void release(Envelope[] envelopes) {
+            if (envelopes == own) busy.set(false);
+        }
+    }
+    /**
+     * @author Shreyas Raghunath
+     * A fixed pool of VOICES voices that chords are rendered with. A voice plays one note of a
+     * chord: it holds the phase of its oscillator, the level of its attenuation and a row of the
+     * block for its output, all allocated once with the pool. When a note starts and every voice
+     * is busy, a voice is stolen: the lowest and the highest notes, which carry the bass and the
+     * melody, keep theirs, and the highest of the others loses its voice, or the new note is not
+     * played if it is that one. The notes of a chord all start and end together, since a PSG
+     * plays one command at a time, so the pool is filled at the start of every range it renders.
+     * */
+    private static final class VoicePool {
+        /**
+         * The note each voice plays, as an index into the chord, and its frequency.
+         * */
+        final int[] notes = new int[VOICES];
+        final double[] freqs = new double[VOICES];
+        /**
+         * The phase of the wavetable oscillator and the attenuation of each voice.
+         * */
+        final double[] phases = new double[VOICES], levels = new double[VOICES];
+        /**
+         * The output of each voice for the current block.
+         * */
+        final double[][] rows = new double[VOICES][Mixer.BLOCK_SIZE];
+        /**
+         * The number of busy voices, which are the first ones.
+         * */
+        int active;
+
+        /**
+         * Release every voice.
+         * */
+        void clear() {
+            active = 0;
+        }
+        /**
+         * Start a note on a free voice, or steal one if there is none.
+         * @param note The index of the note in the chord.
+         * @param freq The frequency of the note.
+         * @return The voice, or -1 if the note is not played.
+         * */
+        int noteOn(int note, double freq) {
+            if (active < VOICES) {
+                notes[active] = note;
+                freqs[active] = freq;
+                return active++;
+            }
+            int top = 0; // The highest note keeps its voice
+            for (int s = 1; s < active; s++) if (freqs[s] > freqs[top]) top = s;
+            int victim = -1; // The highest of the other busy voices
+            for (int s = 0; s < active; s++) if (s != top && (victim < 0 || freqs[s] > freqs[victim])) victim = s;
+            if (freq > freqs[top]) { // The new note is the highest, the old highest note may lose its voice instead
+                if (victim < 0 || freqs[top] > freqs[victim]) victim = top;
+            } else if (victim < 0 || freq >= freqs[victim]) {
+                return -1; // The new note is the one to drop
+            }
+            notes[victim] = note;
+            freqs[victim] = freq;
+            return victim;
+        }
+    }
+    /**
+     * @author Shreyas Raghunath
+     * The generator of a streamed command, with the waveform and the synthesis it was created for.
+     * */
+    private static final class Streamed {
+        final Generator generator;
+        final int waveform, synthesis;
+
+        Streamed(Generator generator, int waveform, int synthesis) {
+            this.generator = generator;
+            this.waveform = waveform;
+            this.synthesis = synthesis;
+        }
     }
     /**
-     * A helper class that represents commands. Has its own hashcode method.
      * @author Shreyas Raghunath
+     * The key of a sample in the cache: everything that determines it apart from the command itself,
+     * which is identified by its global id. The loudness is applied while rendering, so it is not
+     * part of the key. The playback speed is: it changes how long the note lasts while its pitch
+     * stays the same, and the attenuation, vibrato and ADSR envelopes are shaped over that length,
+     * so the note at another speed is a different sample rather than a resampled or cut one.
      * */
-    private static class Command {
-        String[] strings; // The strings used to represent the command
-        private int hashCode = 0; // The stored hash code
+    private static final class Key {
+        final int waveform, command;
+        final float sampleRate;
+        final double speed;
 
-        Command(String[] strings) {
-            this.strings = strings;
-            for (String s : strings) hashCode += s.hashCode();
+        /**
+         * @param waveform The id of the waveform (0 for white noise).
+         * @param sampleRate The sample rate in Hz.
+         * @param speed The playback speed.
+         * @param command The global id of the command.
+         * */
+        Key(int waveform, float sampleRate, double speed, int command) {
+            this.waveform = waveform;
+            this.sampleRate = sampleRate;
+            this.speed = speed;
+            this.command = command;
         }
+        @Override
         public int hashCode() {
-            return hashCode;
+            return ((waveform * 31 + command) * 31 + Float.hashCode(sampleRate)) * 31 + Double.hashCode(speed);
         }
+        @Override
         public boolean equals(Object o) {
-            return this == o || (o != null && getClass() == o.getClass() && Arrays.equals(strings, ((Command) o).strings));
+            if (!(o instanceof Key)) return false;
+            Key k = (Key) o;
+            return waveform == k.waveform && command == k.command && sampleRate == k.sampleRate && speed == k.speed;
         }
     }
 }
\ No newline at end of file
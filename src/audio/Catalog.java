@@ -0,0 +1,379 @@
+package audio;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * @author Shreyas Raghunath
+ * The Catalog class is the index of the sound library. It records the metadata of every sound
+ * (its command count, duration, number of distinct commands and a hash of its contents) in a
+ * catalog.txt file next to the sounds, so listing the library or sizing a sound does not have
+ * to open and parse the sound files. catalog.txt is versioned with the sounds and identifies
+ * them by size and hash only, since modification times differ on every checkout; it is written
+ * by main(), a build-time tool, never by the application. When the sounds directory is present,
+ * the catalog is brought up to date on load against a local, untracked STAMPS file that also
+ * records the modification time of every sound: a file whose size and modification time did
+ * not change is not even read, any other file is hashed, and only a file whose hash matches
+ * neither index is parsed again. Otherwise it is read from the catalog.txt resource on the
+ * class path.
+ * */
+public final class Catalog {
+    /**
+     * The name of the index file in the sounds directory.
+     * */
+    static final String FILE = "catalog.txt";
+    /**
+     * The name of the local index in the sounds directory: the entries of this checkout, with
+     * the modification time of every file. It is not versioned (see .gitignore).
+     * */
+    static final String STAMPS = ".catalog.local";
+    /**
+     * The version of the index file. Entries of another version are computed again.
+     * */
+    private static final int VERSION = 2;
+    /**
+     * The modification time of the entries of catalog.txt, which does not record them.
+     * */
+    private static final long UNKNOWN = -1;
+    /**
+     * The directory the sounds are loaded from when running from the source tree.
+     * */
+    static final File SOUNDS = new File("src/audio/sounds");
+    /**
+     * The entries by name, sorted.
+     * */
+    private final Map<String, Entry> entries;
+
+    /**
+     * @param entries The entries by name.
+     * */
+    private Catalog(Map<String, Entry> entries) {
+        this.entries = Collections.unmodifiableMap(new TreeMap<>(entries));
+    }
+    /**
+     * Load the catalog of the sound library: update it in SOUNDS if that directory exists,
+     * otherwise read it from the class path.
+     * @return The catalog. Empty if there is none.
+     * */
+    public static Catalog load() {
+        try {
+            if (SOUNDS.isDirectory()) return update(SOUNDS);
+            InputStream in = Catalog.class.getResourceAsStream("/audio/sounds/" + FILE);
+            if (in != null) {
+                try (Reader r = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+                    return new Catalog(read(r));
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return new Catalog(Collections.emptyMap());
+    }
+    /**
+     * Write catalog.txt of the sound library, e.g. after adding or editing sounds:
+     * java -cp out audio.Catalog [sounds directory]. The file is only written if it changed.
+     * @param args An optional sounds directory, SOUNDS by default.
+     * */
+    public static void main(String[] args) throws IOException {
+        File dir = args.length > 0 ? new File(args[0]) : SOUNDS;
+        Catalog catalog = update(dir);
+        File index = new File(dir, FILE);
+        StringWriter w = new StringWriter();
+        write(w, catalog.entries, false);
+        byte[] bytes = w.toString().getBytes(StandardCharsets.UTF_8);
+        if (index.isFile() && Arrays.equals(bytes, Files.readAllBytes(index.toPath()))) {
+            System.out.println(index + " is up to date (" + catalog.size() + " sounds)");
+        } else {
+            Files.write(index.toPath(), bytes);
+            System.out.println("Wrote " + index + " (" + catalog.size() + " sounds)");
+        }
+    }
+    /**
+     * Bring the catalog of a sounds directory up to date. Only the local STAMPS file is written,
+     * and only if anything changed; catalog.txt is only read.
+     * @param dir The sounds directory.
+     * @return The catalog.
+     * @throws IOException If the directory or an index cannot be read, or the local index cannot be written.
+     * */
+    public static Catalog update(File dir) throws IOException {
+        Map<String, Entry> index = read(new File(dir, FILE)), local = read(new File(dir, STAMPS));
+        Map<String, Entry> entries = new TreeMap<>();
+        boolean changed = scan(dir, "", index, local, entries);
+        changed |= !local.keySet().equals(entries.keySet()); // Sounds were added or deleted
+        if (changed) {
+            try (Writer w = new OutputStreamWriter(new FileOutputStream(new File(dir, STAMPS)), StandardCharsets.UTF_8)) {
+                write(w, entries, true);
+            }
+        }
+        return new Catalog(entries);
+    }
+    /**
+     * Get every sound of the library.
+     * @return The entries, sorted by name, so the sounds of a folder are next to each other.
+     * */
+    public Collection<Entry> getEntries() {
+        return entries.values();
+    }
+    /**
+     * Get a sound of the library.
+     * @param name The name of the sound, e.g. lofi/melody.
+     * @return The entry, or null if there is no such sound.
+     * */
+    public Entry get(String name) {
+        return entries.get(name);
+    }
+    /**
+     * Get the number of sounds in the library.
+     * @return The number of sounds.
+     * */
+    public int size() {
+        return entries.size();
+    }
+    /**
+     * Find the sound files of a directory and its subdirectories and compute the entries that changed.
+     * @param dir The directory.
+     * @param prefix The name of the directory within the library, e.g. "lofi/", or "" for the library itself.
+     * @param index The entries of catalog.txt.
+     * @param local The entries of the local index, with modification times.
+     * @param entries The map the entries are added to.
+     * @return If the local index has to be written again, return true, false if every file was unchanged.
+     * @throws IOException If a file cannot be read.
+     * */
+    private static boolean scan(File dir, String prefix, Map<String, Entry> index, Map<String, Entry> local, Map<String, Entry> entries) throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) throw new IOException("Cannot list " + dir);
+        boolean changed = false;
+        for (File f : files) {
+            if (f.isDirectory()) {
+                changed |= scan(f, prefix + f.getName() + "/", index, local, entries);
+                continue;
+            }
+            if (!f.getName().endsWith(".txt") || prefix.isEmpty() && f.getName().equals(FILE)) continue;
+            String name = prefix + f.getName().substring(0, f.getName().length() - 4); // Remove .txt
+            Entry l = local.get(name);
+            long size = f.length(), modified = f.lastModified();
+            if (l != null && l.size == size && l.modified == modified) { // Unchanged, not even read
+                entries.put(name, l);
+                continue;
+            }
+            byte[] bytes = Files.readAllBytes(f.toPath());
+            String hash = hash(bytes);
+            changed = true;
+            Entry e = index.get(name);
+            if (e == null || e.size != bytes.length || !e.hash.equals(hash)) e = l; // Not the version of catalog.txt, maybe the last one seen here
+            if (e != null && e.size == bytes.length && e.hash.equals(hash)) { // Touched or checked out again, not parsed
+                entries.put(name, new Entry(e, modified));
+                continue;
+            }
+            try {
+                entries.put(name, new Entry(name, Program.compile(new ByteArrayInputStream(bytes)), hash, bytes.length, modified));
+            } catch (IOException ex) { // A malformed sound is left out of the library
+                ex.printStackTrace();
+            }
+        }
+        return changed;
+    }
+    /**
+     * Read an index file.
+     * @param index The file.
+     * @return The entries by name, or none if there is no such file or it has another version.
+     * @throws IOException If the file cannot be read.
+     * */
+    private static Map<String, Entry> read(File index) throws IOException {
+        if (!index.isFile()) return new TreeMap<>();
+        try (Reader r = new InputStreamReader(new FileInputStream(index), StandardCharsets.UTF_8)) {
+            return read(r);
+        }
+    }
+    /**
+     * Read an index.
+     * @param r The reader of the index. It is not closed.
+     * @return The entries by name, or none if the index has another version.
+     * @throws IOException If the index cannot be read.
+     * */
+    private static Map<String, Entry> read(Reader r) throws IOException {
+        Map<String, Entry> entries = new TreeMap<>();
+        BufferedReader in = new BufferedReader(r);
+        String line = in.readLine();
+        if (line == null || !line.equals("# catalog " + VERSION)) return entries;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] l = line.split("\t");
+            try {
+                Entry e = new Entry(l[0], Integer.parseInt(l[1]), Integer.parseInt(l[2]), Long.parseLong(l[3]), Double.parseDouble(l[4]), l[5], Long.parseLong(l[6]),
+                        l.length > 7 ? Long.parseLong(l[7]) : UNKNOWN);
+                entries.put(e.name, e);
+            } catch (RuntimeException e) { // A damaged line is computed again
+                System.err.println("Ignoring catalog line: " + line);
+            }
+        }
+        return entries;
+    }
+    /**
+     * Write an index. Lines end with \n on every platform, so the index does not depend on where it was written.
+     * @param w The writer. It is not closed.
+     * @param entries The entries.
+     * @param local Write the modification times too, for the local index.
+     * @throws IOException If the index cannot be written.
+     * */
+    private static void write(Writer w, Map<String, Entry> entries, boolean local) throws IOException {
+        w.write("# catalog " + VERSION + "\n");
+        w.write("# name\tcommands\tdistinct commands\tframes at 44.1 kHz\tmilliseconds\tsha-256\tsize" + (local ? "\tmodified\n" : "\n"));
+        for (Entry e : entries.values()) {
+            w.write(e.name + "\t" + e.commands + "\t" + e.distinct + "\t" + e.frames + "\t" + e.ms + "\t" + e.hash + "\t" + e.size + (local ? "\t" + e.modified + "\n" : "\n"));
+        }
+    }
+    /**
+     * Hash the contents of a sound file.
+     * @param bytes The contents.
+     * @return The SHA-256 hash in hexadecimal.
+     * */
+    private static String hash(byte[] bytes) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder sb = new StringBuilder(64);
+            for (byte b : hash) sb.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) { // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * @author Shreyas Raghunath
+     * The metadata of a sound.
+     * */
+    public static final class Entry {
+        /**
+         * The name of the sound, e.g. lofi/melody.
+         * */
+        final String name;
+        /**
+         * The number of commands, and the number of distinct tones and noises among them.
+         * */
+        final int commands, distinct;
+        /**
+         * The duration in frames at the default sample rate and playback speed, with one pass of the loop section.
+         * */
+        final long frames;
+        /**
+         * The duration in milliseconds at playback speed 1, with one pass of the loop section.
+         * */
+        final double ms;
+        /**
+         * The SHA-256 hash of the sound file.
+         * */
+        final String hash;
+        /**
+         * The size of the sound file in bytes, and its modification time when it was hashed
+         * (UNKNOWN for the entries of catalog.txt).
+         * */
+        final long size, modified;
+
+        Entry(String name, int commands, int distinct, long frames, double ms, String hash, long size, long modified) {
+            this.name = name;
+            this.commands = commands;
+            this.distinct = distinct;
+            this.frames = frames;
+            this.ms = ms;
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+        }
+        /**
+         * Compute the entry of a compiled sound.
+         * @param name The name of the sound.
+         * @param program The compiled sound.
+         * @param hash The hash of the sound file.
+         * @param size The size of the sound file.
+         * @param modified The modification time of the sound file.
+         * */
+        Entry(String name, Program program, String hash, long size, long modified) {
+            this.name = name;
+            this.hash = hash;
+            this.size = size;
+            this.modified = modified;
+            commands = program.size();
+            Set<Integer> ids = new HashSet<>();
+            double ms = 0;
+            for (int i = 0; i < program.size(); i++) {
+                if (program.ops[i] != Program.TONE && program.ops[i] != Program.NOISE) continue;
+                ids.add(program.ids[i]);
+                ms += program.ms[i];
+            }
+            distinct = ids.size();
+            this.ms = ms;
+            frames = new CachedPSG(program, name).getFrameLength();
+        }
+        /**
+         * Reuse an entry for a file that was touched or checked out again but not changed.
+         * @param e The entry.
+         * @param modified The new modification time of the file.
+         * */
+        Entry(Entry e, long modified) {
+            this(e.name, e.commands, e.distinct, e.frames, e.ms, e.hash, e.size, modified);
+        }
+        /**
+         * Get the name of the sound.
+         * @return The name, e.g. lofi/melody.
+         * */
+        public String getName() {
+            return name;
+        }
+        /**
+         * Get the number of commands of the sound.
+         * @return The number of commands, including waveform changes and the end of the opening.
+         * */
+        public int getCommands() {
+            return commands;
+        }
+        /**
+         * Get the number of distinct tones and noises of the sound, i.e. how many samples it adds to the cache.
+         * @return The number of distinct commands.
+         * */
+        public int getDistinctCommands() {
+            return distinct;
+        }
+        /**
+         * Get the duration of the sound at the default sample rate and playback speed, with one pass of the loop section.
+         * @return The duration in frames.
+         * */
+        public long getFrames() {
+            return frames;
+        }
+        /**
+         * Get the duration of the sound at playback speed 1, with one pass of the loop section.
+         * @return The duration in seconds.
+         * */
+        public double getSeconds() {
+            return ms / 1000;
+        }
+        /**
+         * Get the hash of the sound file.
+         * @return The SHA-256 hash in hexadecimal.
+         * */
+        public String getHash() {
+            return hash;
+        }
+    }
+}
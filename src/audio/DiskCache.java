@@ -0,0 +1,216 @@
+package audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Shreyas Raghunath
+ * The DiskCache class keeps generated samples in a directory, so that they survive the JVM and
+ * a warm start does not have to synthesize anything. Every sample is one file named after a
+ * hash of everything that determines it, and is read back through a memory-mapped FileChannel:
+ * the samples stay in the page cache of the OS instead of being copied onto the heap.
+ * It is enabled by setting the audio.cache.dir system property to a directory. The total
+ * size of the files is limited by audio.cache.dirBytes (256 MB by default); the oldest files
+ * are deleted first, in an order kept in memory so that storing never lists the directory. The
+ * file names start with the VERSION, and the files of other versions are deleted when the cache
+ * is opened.
+ * */
+final class DiskCache {
+    /**
+     * The version of the file format and of the synthesis. Increase it whenever the samples of a command change.
+     * */
+    static final int VERSION = 5;
+    /**
+     * The first bytes of every file.
+     * */
+    private static final int MAGIC = 0x50534753; // "PSGS"
+    /**
+     * The size of the header: magic, version and number of samples.
+     * */
+    private static final int HEADER_SIZE = 12;
+    /**
+     * The suffix of the sample files.
+     * */
+    private static final String SUFFIX = ".smp";
+    /**
+     * The start of the names of the files of this version.
+     * */
+    private static final String PREFIX = "v" + VERSION + "-";
+    /**
+     * The cache directory.
+     * */
+    private final File dir;
+    /**
+     * The maximum total size of the files in bytes.
+     * */
+    private final long capacity;
+    /**
+     * The size of each file known to this cache by file name, oldest first. Guarded by this.
+     * */
+    private final Map<String, Long> files = new LinkedHashMap<>();
+    /**
+     * The total size of the files in bytes. Guarded by this.
+     * */
+    private long bytes;
+
+    /**
+     * @param dir The cache directory. It is created if it does not exist, and the files of other versions are deleted.
+     * @param capacity The maximum total size of the files in bytes.
+     * @throws IOException If the directory cannot be created.
+     * */
+    DiskCache(File dir, long capacity) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create cache directory " + dir);
+        this.dir = dir;
+        this.capacity = capacity;
+        File[] found = dir.listFiles((d, n) -> n.endsWith(SUFFIX));
+        if (found == null) throw new IOException("Cannot list cache directory " + dir);
+        Arrays.sort(found, Comparator.comparingLong(File::lastModified));
+        for (File f : found) {
+            if (!f.getName().startsWith(PREFIX)) { // Written by another version, never read again
+                f.delete();
+                continue;
+            }
+            files.put(f.getName(), f.length());
+            bytes += f.length();
+        }
+    }
+    /**
+     * Open the cache directory given by the audio.cache.dir system property.
+     * @return The cache, or null if the property is not set or the directory cannot be used.
+     * */
+    static DiskCache fromProperties() {
+        String dir = System.getProperty("audio.cache.dir");
+        if (dir == null || dir.isEmpty()) return null;
+        try {
+            return new DiskCache(new File(dir), Long.getLong("audio.cache.dirBytes", 256L << 20));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+    /**
+     * Hash the description of a sample into a file name.
+     * @param description Everything that determines the sample.
+     * @return The name, starting with the version.
+     * */
+    static String name(String description) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(description.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(PREFIX);
+            for (int i = 0; i < 20; i++) sb.append(Character.forDigit(hash[i] >> 4 & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) { // Every JVM has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * Map a sample.
+     * @param name The name of the sample.
+     * @return The samples, backed by the file, or null if the sample is not cached.
+     * */
+    FloatBuffer load(String name) {
+        File f = new File(dir, name + SUFFIX);
+        if (!f.isFile()) return null;
+        try (RandomAccessFile file = new RandomAccessFile(f, "r"); FileChannel channel = file.getChannel()) {
+            long size = channel.size();
+            if (size >= HEADER_SIZE) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size); // Stays valid after the channel is closed
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                int length = map.getInt(8);
+                if (map.getInt(0) == MAGIC && map.getInt(4) == VERSION && length >= 0 && size == HEADER_SIZE + 4L * length) {
+                    track(f.getName(), size); // Stored by another process sharing the directory
+                    map.position(HEADER_SIZE);
+                    return map.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        delete(f); // Corrupt
+        return null;
+    }
+    /**
+     * Store a sample. The file is written under a temporary name and then renamed, so that other
+     * processes sharing the directory never see a partial file.
+     * @param name The name of the sample.
+     * @param sample The samples.
+     * */
+    void store(String name, float[] sample) {
+        long size = HEADER_SIZE + 4L * sample.length;
+        if (size > capacity) return;
+        File f = new File(dir, name + SUFFIX);
+        try {
+            File tmp = File.createTempFile(name, ".tmp", dir);
+            try (RandomAccessFile file = new RandomAccessFile(tmp, "rw"); FileChannel channel = file.getChannel()) {
+                ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(sample.length);
+                buffer.asFloatBuffer().put(sample);
+                buffer.rewind(); // The float view does not move the position, which is still after the header
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            stored(f.getName(), size);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+    /**
+     * Get the total size of the files.
+     * @return The size in bytes.
+     * */
+    synchronized long getBytes() {
+        return bytes;
+    }
+    /**
+     * Account for a file that was just stored, as the newest one, and delete the oldest files
+     * until the cache fits its size limit again.
+     * @param file The name of the file.
+     * @param size Its size in bytes.
+     * */
+    private synchronized void stored(String file, long size) {
+        Long old = files.remove(file);
+        files.put(file, size);
+        bytes += size - (old == null ? 0 : old);
+        for (Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator(); it.hasNext() && bytes > capacity;) {
+            Map.Entry<String, Long> e = it.next();
+            File f = new File(dir, e.getKey());
+            if (!f.delete() && f.exists()) continue; // In use, tried again on the next store
+            bytes -= e.getValue();
+            it.remove();
+        }
+    }
+    /**
+     * Account for a file found in the directory that this cache did not know about.
+     * @param file The name of the file.
+     * @param size Its size in bytes.
+     * */
+    private synchronized void track(String file, long size) {
+        if (files.putIfAbsent(file, size) == null) bytes += size;
+    }
+    /**
+     * Delete a file and stop accounting for it.
+     * @param f The file.
+     * */
+    private synchronized void delete(File f) {
+        f.delete();
+        Long size = files.remove(f.getName());
+        if (size != null) bytes -= size;
+    }
+}
@@ -0,0 +1,359 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author Shreyas Raghunath
+ * The Engine class is the library API of the sequencer. It owns the sequences of a track and
+ * can load, save, play, stop and render them and report their duration. It does not use
+ * Swing or AWT, so it can run in server JVMs with java.awt.headless=true. MainFrame and
+ * SequencerCli are thin clients on top of it.
+ * */
+public class Engine {
+    /**
+     * The number of sequences in a track.
+     * */
+    public static final int SEQUENCES = 5;
+    /**
+     * The compiled programs of the sounds loaded so far, by name.
+     * */
+    private static final Map<String, Program> programs = new ConcurrentHashMap<>();
+    /**
+     * The sequences. Each one is played back in order, and all of them are played in parallel.
+     * It is an immutable snapshot: every edit publishes a new one (copy-on-write), so it can be
+     * read from any thread without locking, and a running playback picks it up between blocks.
+     * */
+    private volatile List<List<PSG>> music;
+    /**
+     * The timeline of each sequence, or null where it has to be built again.
+     * */
+    private final Timeline[] timelines = new Timeline[SEQUENCES];
+    /**
+     * The mixer of the current playback, or null if nothing has been played yet.
+     * */
+    private Mixer mixer;
+    /**
+     * The playback speed of every sound of the track.
+     * */
+    private double playbackSpeed = 1.0;
+    /**
+     * Whether the samples of the track are generated in parallel before playback starts.
+     * */
+    private boolean prerender = true;
+    /**
+     * The output format of playback and rendering.
+     * */
+    private AudioFormat format = CachedPSG.FORMAT;
+    /**
+     * Whether TPDF dither is added when the mix is quantized to the output format.
+     * */
+    private boolean dither;
+    /**
+     * Told when each sound of a playback starts, or null.
+     * */
+    private Mixer.Listener listener;
+
+    public Engine() {
+        publish(new ArrayList<>(Collections.nCopies(SEQUENCES, Collections.<PSG>emptyList())));
+    }
+    /**
+     * Create a PSG for a sound in the sound library.
+     * @param source The name of the sound, e.g. lofi/melody.
+     * @return The PSG.
+     * @throws IOException If the sound does not exist or cannot be compiled.
+     * */
+    public static PSG loadSound(String source) throws IOException {
+        return new CachedPSG(loadProgram(source), source);
+    }
+    /**
+     * Get the compiled program of a sound in the sound library. Each sound is parsed once and then
+     * shared by every PSG that plays it.
+     * @param source The name of the sound, e.g. lofi/melody.
+     * @return The program.
+     * @throws IOException If the sound does not exist or cannot be compiled.
+     * */
+    static Program loadProgram(String source) throws IOException {
+        Program program = programs.get(source);
+        if (program == null) {
+            InputStream in = Engine.class.getResourceAsStream("/audio/sounds/" + source + ".txt");
+            if (in == null) throw new IOException("Sound not found: " + source);
+            Program compiled = Program.compile(in);
+            program = programs.putIfAbsent(source, compiled);
+            if (program == null) program = compiled;
+        }
+        return program;
+    }
+    /**
+     * Add a sound to the end of a sequence.
+     * @param source The name of the sound, e.g. lofi/melody.
+     * @param sequence The index of the sequence.
+     * @return The PSG that was added.
+     * @throws IOException If the sound does not exist or cannot be compiled.
+     * */
+    public synchronized PSG addSound(String source, int sequence) throws IOException {
+        PSG sound = loadSound(source).setPlaybackSpeed(playbackSpeed).setSampleRate(format.getSampleRate());
+        List<PSG> edited = new ArrayList<>(music.get(sequence));
+        edited.add(sound);
+        edit(sequence, edited);
+        return sound;
+    }
+    /**
+     * Remove a sound from a sequence.
+     * @param sequence The index of the sequence.
+     * @param index The index of the sound within the sequence.
+     * */
+    public synchronized void removeSound(int sequence, int index) {
+        List<PSG> edited = new ArrayList<>(music.get(sequence));
+        edited.remove(index);
+        edit(sequence, edited);
+    }
+    /**
+     * Remove every sound from every sequence.
+     * */
+    public synchronized void clear() {
+        publish(new ArrayList<>(Collections.nCopies(SEQUENCES, Collections.<PSG>emptyList())));
+    }
+    /**
+     * Get the sequences of the track.
+     * @return An immutable snapshot of the sequences. Later edits do not change it.
+     * */
+    public List<List<PSG>> getSequences() {
+        return music;
+    }
+    /**
+     * Replace one sequence.
+     * @param sequence The index of the sequence.
+     * @param edited The new sounds of the sequence.
+     * */
+    private void edit(int sequence, List<PSG> edited) {
+        List<List<PSG>> sequences = new ArrayList<>(music);
+        sequences.set(sequence, edited);
+        publish(sequences);
+    }
+    /**
+     * Make sequences the current snapshot and hand them to the current playback, which picks them
+     * up at its next block without either side taking a lock on the audio path.
+     * @param sequences The sequences.
+     * */
+    private synchronized void publish(List<List<PSG>> sequences) {
+        List<List<PSG>> snapshot = new ArrayList<>(sequences.size());
+        for (List<PSG> sequence : sequences) snapshot.add(Collections.unmodifiableList(new ArrayList<>(sequence)));
+        music = Collections.unmodifiableList(snapshot);
+        Arrays.fill(timelines, null);
+        if (mixer != null && mixer.isRunning()) mixer.edit(music);
+    }
+    /**
+     * Replace the sequences with the ones of a track file: one line per sequence, each line
+     * being a comma-separated list of sound names. Nothing changes if the track cannot be loaded.
+     * A running playback carries on with the new sequences.
+     * @param track The track file.
+     * @throws IOException If the track or one of its sounds cannot be read.
+     * */
+    public void loadTrack(File track) throws IOException {
+        List<List<PSG>> loaded = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(track))) {
+            for (String line = r.readLine(); line != null && loaded.size() < SEQUENCES; line = r.readLine()) {
+                List<PSG> sequence = new ArrayList<>();
+                if (!line.isEmpty()) {
+                    for (String source : line.split(",")) sequence.add(loadSound(source).setPlaybackSpeed(playbackSpeed).setSampleRate(format.getSampleRate()));
+                }
+                loaded.add(sequence);
+            }
+        }
+        while (loaded.size() < SEQUENCES) loaded.add(Collections.emptyList());
+        publish(loaded);
+    }
+    /**
+     * Save the sequences to a track file.
+     * @param track The track file.
+     * @throws IOException If the file cannot be written.
+     * */
+    public void saveTrack(File track) throws IOException {
+        List<List<PSG>> music = this.music; // One snapshot, even if the track is edited meanwhile
+        try (Writer writer = new FileWriter(track)) {
+            for (int i = 0; i < music.size(); i++) {
+                List<PSG> sequence = music.get(i);
+                for (int j = 0; j < sequence.size(); j++) {
+                    if (j != 0) writer.write(","); // Separate sounds by comma
+                    writer.write(sequence.get(j).getName());
+                }
+                if (i != music.size() - 1) writer.write(System.lineSeparator()); // Separate sequences by new line
+            }
+        }
+    }
+    /**
+     * Set the playback speed of every sound of the track, including the ones added later.
+     * A running playback plays its own copies of the sounds, so it keeps its speed until it is started again.
+     * @param playbackSpeed The playback speed. Must be positive.
+     * @return The engine itself.
+     * */
+    public synchronized Engine setPlaybackSpeed(double playbackSpeed) {
+        this.playbackSpeed = playbackSpeed;
+        for (List<PSG> sequence : music) {
+            for (PSG psg : sequence) psg.setPlaybackSpeed(playbackSpeed);
+        }
+        Arrays.fill(timelines, null);
+        return this;
+    }
+    /**
+     * Set the output format of playback and rendering. The sounds are rendered at its sample rate,
+     * so a lower rate also costs less CPU, e.g. for previews.
+     * @param format Signed PCM with 8, 16, 24 or 32 bits, mono or stereo, at any sample rate such as 22050, 44100 or 48000 Hz.
+     * @return The engine itself.
+     * @throws IllegalArgumentException If the format is not supported.
+     * */
+    public synchronized Engine setFormat(AudioFormat format) {
+        Mixer.checkFormat(format);
+        this.format = format;
+        for (List<PSG> sequence : music) {
+            for (PSG psg : sequence) psg.setSampleRate(format.getSampleRate());
+        }
+        Arrays.fill(timelines, null);
+        return this;
+    }
+    /**
+     * Get the output format of playback and rendering.
+     * @return The format.
+     * */
+    public AudioFormat getFormat() {
+        return format;
+    }
+    /**
+     * Choose whether TPDF dither is added when the mix is quantized to the output format.
+     * @param dither Dither (true = yes, false = no)
+     * @return The engine itself.
+     * */
+    public Engine setDither(boolean dither) {
+        this.dither = dither;
+        return this;
+    }
+    /**
+     * Choose whether the samples of the track are generated in parallel before playback starts.
+     * Otherwise each sample is generated when it is first played.
+     * @param prerender Pre-render (true = yes, false = no)
+     * @return The engine itself.
+     * */
+    public Engine setPrerender(boolean prerender) {
+        this.prerender = prerender;
+        return this;
+    }
+    /**
+     * Choose what is told when each sound of a playback starts, e.g. to highlight it. Not used when rendering.
+     * @param listener The listener, or null for none.
+     * @return The engine itself.
+     * */
+    public synchronized Engine setListener(Mixer.Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+    /**
+     * Start playing all sequences through the audio output. A playback that is still running is stopped first.
+     * @return A future that completes with the number of frames played once the playback has finished or been stopped.
+     * */
+    public CompletableFuture<Long> play() {
+        return play(0);
+    }
+    /**
+     * Start playing all sequences through the audio output from a frame of the track, e.g. to listen
+     * to the end of a long track without playing all of it. A playback that is still running is stopped first.
+     * @param frame The frame to start at. See getTimeline() to find where a sound starts.
+     * @return A future that completes with the number of frames played once the playback has finished or been stopped.
+     * */
+    public synchronized CompletableFuture<Long> play(long frame) {
+        stop();
+        mixer = new Mixer(music, format).setDither(dither).setPrerender(prerender).setListener(listener).setStart(frame);
+        mixer.start();
+        return mixer.getTransport().getCompletion();
+    }
+    /**
+     * Stop playing.
+     * */
+    public synchronized void stop() {
+        if (mixer != null) mixer.stop();
+    }
+    /**
+     * Get the state of the playback.
+     * @return If the track is still playing, return true, false otherwise.
+     * */
+    public synchronized boolean isPlaying() {
+        return mixer != null && mixer.isRunning();
+    }
+    /**
+     * Get the position of the current playback in the track.
+     * @return The frame of the track that is playing, or 0 if nothing has been played yet.
+     * */
+    public synchronized long getPosition() {
+        return mixer == null ? 0 : mixer.getStart() + mixer.getTransport().getPosition();
+    }
+    /**
+     * Wait until the current playback has finished.
+     * @throws InterruptedException If the thread is interrupted while waiting.
+     * */
+    public void awaitPlayback() throws InterruptedException {
+        Mixer m;
+        synchronized (this) {
+            m = mixer;
+        }
+        if (m != null) m.join();
+    }
+    /**
+     * Render all sequences into a WAVE file in the output format, as fast as the CPU allows.
+     * @param wav The file to write.
+     * @return The number of frames written.
+     * @throws IOException If the file cannot be written.
+     * */
+    public long render(File wav) throws IOException {
+        return render(wav, 0);
+    }
+    /**
+     * Render all sequences into a WAVE file in the output format, from a frame of the track to its end.
+     * @param wav The file to write.
+     * @param frame The frame to start at.
+     * @return The number of frames written.
+     * @throws IOException If the file cannot be written.
+     * */
+    public long render(File wav, long frame) throws IOException {
+        return OfflineRenderer.render(music, wav, format, dither, frame);
+    }
+    /**
+     * Get the duration of the track without rendering it.
+     * @return The length of the longest sequence in frames.
+     * */
+    public long getDuration() {
+        long duration = 0;
+        for (int i = 0; i < SEQUENCES; i++) duration = Math.max(duration, getTimeline(i).getLength());
+        return duration;
+    }
+    /**
+     * Get the timeline of a sequence, which tells where each sound starts and what plays at any frame.
+     * It is built once and kept until the sequence, the playback speed or the format changes.
+     * @param sequence The index of the sequence.
+     * @return The timeline.
+     * */
+    public synchronized Timeline getTimeline(int sequence) {
+        Timeline timeline = timelines[sequence];
+        if (timeline == null) timelines[sequence] = timeline = new Timeline(music.get(sequence));
+        return timeline;
+    }
+    /**
+     * Get the sample rate of the audio produced by the engine.
+     * @return The sample rate in Hz.
+     * */
+    public float getSampleRate() {
+        return format.getSampleRate();
+    }
+}
@@ -0,0 +1,113 @@
+package audio;
+
+/**
+ * @author Shreyas Raghunath
+ * The Envelope class generates control signals for notes: exponential decay, ADSR and sine
+ * LFOs for vibrato and tremolo. Each one is computed by a recurrence, so stepping to the next
+ * sample costs a multiply or two instead of a call to Math.exp or Math.sin. Only seek(), which
+ * is called once at the start of every range of samples, evaluates the exact formula, so
+ * ranges can still be rendered independently and rounding errors cannot build up over a note.
+ * An envelope is a cursor: create one for every range that is rendered.
+ * */
+abstract class Envelope {
+    /**
+     * ln(1000). Decay and release segments fall by 60 dB over their length.
+     * */
+    private static final double LN_1000 = Math.log(1000);
+
+    /**
+     * Move to a sample.
+     * @param i The index of the sample within the note.
+     * @return The value at that sample.
+     * */
+    abstract double seek(long i);
+    /**
+     * Move to the next sample.
+     * @return The value at that sample.
+     * */
+    abstract double next();
+    /**
+     * Exponential decay: exp(-rate * i).
+     * @param rate The decay per sample.
+     * @return The envelope.
+     * */
+    static Envelope decay(double rate) {
+        return new Envelope() {
+            final double q = Math.exp(-rate);
+            double v;
+
+            double seek(long i) {
+                return v = Math.exp(-rate * i);
+            }
+            double next() {
+                return v *= q;
+            }
+        };
+    }
+    /**
+     * Sine low-frequency oscillator: depth * sin(omega * i), stepped with the Chebyshev recurrence
+     * sin((i + 1)w) = 2cos(w)sin(iw) - sin((i - 1)w).
+     * @param omega The angular frequency in radians per sample.
+     * @param depth The amplitude.
+     * @return The envelope.
+     * */
+    static Envelope lfo(double omega, double depth) {
+        return new Envelope() {
+            final double k = 2 * Math.cos(omega);
+            double v, previous;
+
+            double seek(long i) {
+                previous = depth * Math.sin(omega * (i - 1));
+                return v = depth * Math.sin(omega * i);
+            }
+            double next() {
+                double n = k * v - previous;
+                previous = v;
+                return v = n;
+            }
+        };
+    }
+    /**
+     * ADSR: a linear attack from 0 to 1, an exponential decay to the sustain level and an
+     * exponential release over the last samples of the note. The release never cuts into the
+     * attack: if it is longer than the rest of the note, it starts when the attack ends, from the
+     * level the envelope has reached.
+     * @param attack The length of the attack in samples.
+     * @param decay The length of the decay in samples.
+     * @param sustain The sustain level from 0 to 1.
+     * @param release The length of the release in samples.
+     * @param length The length of the note in samples.
+     * @return The envelope.
+     * */
+    static Envelope adsr(int attack, int decay, double sustain, int release, int length) {
+        return new Envelope() {
+            final int releaseStart = release > 0 ? Math.max(Math.min(attack, length), length - release) : Integer.MAX_VALUE;
+            final double kd = decay > 0 ? LN_1000 / decay : 0, kr = release > 0 ? LN_1000 / release : 0;
+            final double qd = Math.exp(-kd), qr = Math.exp(-kr);
+            long p;
+            double v, e; // e is the exponential part of the decay or release segment the cursor is in
+
+            double seek(long i) {
+                p = i;
+                if (i >= releaseStart) return v = e = hold(releaseStart) * Math.exp(-kr * (i - releaseStart));
+                if (i >= attack && i < attack + decay) e = Math.exp(-kd * (i - attack));
+                return v = hold(i);
+            }
+            double next() {
+                p++;
+                if (p >= releaseStart) return p == releaseStart ? seek(p) : (v = e *= qr);
+                if (p < attack) return v += 1.0 / attack;
+                if (p < attack + decay) return p == attack ? seek(p) : (v = sustain + (1 - sustain) * (e *= qd));
+                return v = sustain;
+            }
+            /**
+             * The level before the release.
+             * */
+            double hold(long i) {
+                if (i < attack) return i / (double) attack;
+                if (i < attack + decay) return sustain + (1 - sustain) * Math.exp(-kd * (i - attack));
+                return sustain;
+            }
+        };
+    }
+}
@@ -0,0 +1,215 @@
+package audio;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Shreyas Raghunath
+ * The FusedWaveform class is what Waveform.combine() and Waveform.dissolve() return. Instead of
+ * nesting lambdas that call each other through the Waveform interface, it keeps the structure of
+ * the expression and compiles it into a flat sum: every combine or dissolve is a weighted sum of
+ * its parts, so the whole tree is a sum over its distinct leaf waveforms, each multiplied by a
+ * polynomial in n (how far through the note the sample is). A waveform that appears several
+ * times in the tree is evaluated once per sample, and the built-in waveforms are called through
+ * their constant fields, so the JIT sees one monomorphic, inlinable call per loop.
+ * Two fused waveforms with the same leaves and weights are equal, so that the sample cache
+ * shares their samples however often the same expression is built.
+ * */
+final class FusedWaveform implements PSG.Waveform {
+    /**
+     * How a leaf is evaluated: through a constant built-in waveform, or through the interface.
+     * */
+    private static final byte SQUARE = 0, TRIANGLE = 1, SAWTOOTH = 2, KICK = 3, SNARE = 4, CALL = 5;
+    /**
+     * The distinct leaf waveforms.
+     * */
+    private final PSG.Waveform[] leaves;
+    /**
+     * How each leaf is evaluated.
+     * */
+    private final byte[] ops;
+    /**
+     * The weight of each leaf: the coefficients of a polynomial in n, lowest power first.
+     * */
+    private final double[][] weights;
+
+    /**
+     * @param terms The weight of each distinct leaf waveform.
+     * */
+    private FusedWaveform(Map<PSG.Waveform, double[]> terms) {
+        int size = terms.size(), l = 0;
+        leaves = new PSG.Waveform[size];
+        ops = new byte[size];
+        weights = new double[size][];
+        for (Map.Entry<PSG.Waveform, double[]> term : terms.entrySet()) {
+            leaves[l] = term.getKey();
+            ops[l] = op(term.getKey());
+            weights[l++] = trim(term.getValue());
+        }
+    }
+    /**
+     * Compile the average of waveforms.
+     * @param waveforms The waveforms.
+     * @return The fused waveform.
+     * */
+    static FusedWaveform combine(PSG.Waveform... waveforms) {
+        Map<PSG.Waveform, double[]> terms = new LinkedHashMap<>();
+        for (PSG.Waveform w : waveforms) add(terms, w, new double[] {1.0 / waveforms.length});
+        return new FusedWaveform(terms);
+    }
+    /**
+     * Compile a waveform that dissolves from one waveform into another over the note: (1 - n) * from + n * to.
+     * @param from The first waveform.
+     * @param to The second waveform.
+     * @return The fused waveform.
+     * */
+    static FusedWaveform dissolve(PSG.Waveform from, PSG.Waveform to) {
+        Map<PSG.Waveform, double[]> terms = new LinkedHashMap<>();
+        add(terms, from, new double[] {1, -1});
+        add(terms, to, new double[] {0, 1});
+        return new FusedWaveform(terms);
+    }
+    public double output(double x) {
+        return output(x, 0);
+    }
+    public double output(double x, double n) {
+        double sum = 0;
+        for (int l = 0; l < leaves.length; l++) sum += weight(weights[l], n) * leaf(l, x, n);
+        return sum;
+    }
+    public void output(double[] x, double[] n, double[] out, int length) {
+        Arrays.fill(out, 0, length, 0);
+        for (int l = 0; l < leaves.length; l++) {
+            double[] w = weights[l];
+            switch (ops[l]) { // One loop per leaf, each with a single known call
+                case SQUARE:
+                    for (int k = 0; k < length; k++) out[k] += weight(w, n[k]) * PSG.Waveform.SQUARE.output(x[k]);
+                    break;
+                case TRIANGLE:
+                    for (int k = 0; k < length; k++) out[k] += weight(w, n[k]) * PSG.Waveform.TRIANGLE.output(x[k]);
+                    break;
+                case SAWTOOTH:
+                    for (int k = 0; k < length; k++) out[k] += weight(w, n[k]) * PSG.Waveform.SAWTOOTH.output(x[k]);
+                    break;
+                case KICK:
+                    for (int k = 0; k < length; k++) out[k] += weight(w, n[k]) * PSG.Waveform.KICK.output(x[k]);
+                    break;
+                case SNARE:
+                    for (int k = 0; k < length; k++) out[k] += weight(w, n[k]) * PSG.Waveform.SNARE.output(x[k]);
+                    break;
+                default:
+                    PSG.Waveform leaf = leaves[l];
+                    for (int k = 0; k < length; k++) out[k] += weight(w, n[k]) * leaf.output(x[k], n[k]);
+            }
+        }
+    }
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FusedWaveform)) return false;
+        FusedWaveform f = (FusedWaveform) o;
+        return Arrays.equals(leaves, f.leaves) && Arrays.deepEquals(weights, f.weights);
+    }
+    @Override
+    public int hashCode() {
+        return 31 * Arrays.hashCode(leaves) + Arrays.deepHashCode(weights);
+    }
+    /**
+     * Get the number of distinct waveforms the expression is made of.
+     * @return The number of leaves.
+     * */
+    int size() {
+        return leaves.length;
+    }
+    /**
+     * Evaluate a leaf.
+     * @param l The index of the leaf.
+     * @param x The input value.
+     * @param n How far through the note the sample is.
+     * @return The output of the leaf.
+     * */
+    private double leaf(int l, double x, double n) {
+        switch (ops[l]) {
+            case SQUARE: return PSG.Waveform.SQUARE.output(x);
+            case TRIANGLE: return PSG.Waveform.TRIANGLE.output(x);
+            case SAWTOOTH: return PSG.Waveform.SAWTOOTH.output(x);
+            case KICK: return PSG.Waveform.KICK.output(x);
+            case SNARE: return PSG.Waveform.SNARE.output(x);
+            default: return leaves[l].output(x, n);
+        }
+    }
+    /**
+     * Evaluate a weight by Horner's method.
+     * @param w The coefficients of the polynomial, lowest power first.
+     * @param n How far through the note the sample is.
+     * @return The weight.
+     * */
+    private static double weight(double[] w, double n) {
+        double v = w[w.length - 1];
+        for (int p = w.length - 2; p >= 0; p--) v = v * n + w[p];
+        return v;
+    }
+    /**
+     * Add a waveform with a weight to an expression. Fused waveforms are expanded into their leaves.
+     * @param terms The weight of each leaf so far.
+     * @param w The waveform.
+     * @param weight Its weight, a polynomial in n.
+     * */
+    private static void add(Map<PSG.Waveform, double[]> terms, PSG.Waveform w, double[] weight) {
+        if (w instanceof FusedWaveform) {
+            FusedWaveform f = (FusedWaveform) w;
+            for (int l = 0; l < f.leaves.length; l++) add(terms, f.leaves[l], multiply(f.weights[l], weight));
+        } else {
+            double[] old = terms.get(w);
+            terms.put(w, old == null ? weight : sum(old, weight));
+        }
+    }
+    /**
+     * Multiply two polynomials.
+     * @param a A polynomial.
+     * @param b A polynomial.
+     * @return The product.
+     * */
+    private static double[] multiply(double[] a, double[] b) {
+        double[] c = new double[a.length + b.length - 1];
+        for (int i = 0; i < a.length; i++) {
+            for (int j = 0; j < b.length; j++) c[i + j] += a[i] * b[j];
+        }
+        return c;
+    }
+    /**
+     * Add two polynomials.
+     * @param a A polynomial.
+     * @param b A polynomial.
+     * @return The sum.
+     * */
+    private static double[] sum(double[] a, double[] b) {
+        double[] c = new double[Math.max(a.length, b.length)];
+        for (int i = 0; i < c.length; i++) c[i] = (i < a.length ? a[i] : 0) + (i < b.length ? b[i] : 0);
+        return c;
+    }
+    /**
+     * Remove the zero coefficients of the highest powers, so that a constant weight costs no multiplication by n.
+     * @param w A polynomial.
+     * @return The polynomial without them.
+     * */
+    private static double[] trim(double[] w) {
+        int length = w.length;
+        while (length > 1 && w[length - 1] == 0) length--;
+        return length == w.length ? w : Arrays.copyOf(w, length);
+    }
+    /**
+     * Find out how a leaf is evaluated.
+     * @param w The leaf.
+     * @return Its op.
+     * */
+    private static byte op(PSG.Waveform w) {
+        if (w == PSG.Waveform.SQUARE) return SQUARE;
+        if (w == PSG.Waveform.TRIANGLE) return TRIANGLE;
+        if (w == PSG.Waveform.SAWTOOTH) return SAWTOOTH;
+        if (w == PSG.Waveform.KICK) return KICK;
+        if (w == PSG.Waveform.SNARE) return SNARE;
+        return CALL;
+    }
+}
@@ -0,0 +1,45 @@
+package audio;
+
+import java.util.Objects;
+
+/**
+ * @author Shreyas Raghunath
+ * The Instrumentation class holds the Metrics installed in the JVM. The initial metrics are
+ * chosen with the audio.metrics system property: "jfr" records JFR events with the JfrMetrics
+ * class, which is in the jfr source folder because jdk.jfr is not part of the Java 8 API, so it
+ * is loaded by name and the engine still runs without it.
+ * */
+final class Instrumentation {
+    /**
+     * The metrics in use. Read on the hot paths, so it is a plain volatile field.
+     * */
+    static volatile Metrics metrics = fromProperties();
+
+    private Instrumentation() {
+    }
+    /**
+     * Install metrics.
+     * @param m The metrics.
+     * */
+    static void install(Metrics m) {
+        metrics = Objects.requireNonNull(m);
+    }
+    /**
+     * Create the metrics chosen by the audio.metrics system property.
+     * @return The metrics, NONE if the property is not set or the metrics are not available.
+     * */
+    private static Metrics fromProperties() {
+        String kind = System.getProperty("audio.metrics");
+        if (kind == null) return Metrics.NONE;
+        if (kind.equals("jfr")) {
+            try {
+                return (Metrics) Class.forName("audio.JfrMetrics").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) { // Not compiled in, or no jdk.jfr in this JVM
+                System.err.println("JFR metrics are not available: " + e);
+                return Metrics.NONE;
+            }
+        }
+        System.err.println("Unknown audio.metrics: " + kind);
+        return Metrics.NONE;
+    }
+}
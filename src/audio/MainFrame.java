@@ -2,16 +2,10 @@ package audio;
 
 import java.awt.*;
 import java.awt.event.*;
-import java.io.InputStream;
 import java.io.*;		// read/write files, looking through directories
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import javax.swing.*;
-import java.util.*;
 import java.util.List;
-import java.util.Scanner; // read files (loading tracks)
-import java.util.concurrent.*; // Executor, ExecutorService
 
 /**
  * @class MainFrame
@@ -19,6 +13,8 @@ import java.util.concurrent.*; // Executor, ExecutorService
  * 
  * extends JFrame, display interactive window
  * implements ActionListener interface for button functionality
+ * 
+ * thin client of `Engine`, which owns the sequences and does all loading, saving and playback
  */
 @SuppressWarnings("serial")
 public class MainFrame extends JFrame implements ActionListener
@@ -31,18 +27,15 @@ public class MainFrame extends JFrame implements ActionListener
 	JTextField saveField, loadField;
 	JLabel infoLabel, saveLabel, loadLabel;
 	
-	// hold sounds in `music`, a List of Lists of PSG
+	// `engine` holds the sounds as a List of Lists of PSG
 	// sounds play at `PB` 1.0 speed
-	static List<List<PSG>> music;
+	static Engine engine;
 	final double PB = 1.0;
 	
-	// sound, track directory
-	File folder;
+	// index of the sound library, track directory
+	Catalog catalog;
 	String trackDir;
 	
-	// use ExecutorService to play sequences concurrently
-	ExecutorService executor;
-	
 	/**
 	 * @function constructor
 	 * 
@@ -60,15 +53,11 @@ public class MainFrame extends JFrame implements ActionListener
 		setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		setResizable(false);
 		
-		// initialize `music` List of List of PSG
-		music = new ArrayList<>();
-		for (int i=0; i<5; ++i)
-		{
-			music.add(new ArrayList<>());
-		}
+		// initialize `engine` with empty sequences
+		engine = new Engine().setPlaybackSpeed(PB);
 		
-		// initialize `folder` sound directory
-		folder = new File("./src/audio/sounds");
+		// load the sound library index once, instead of walking the sound directory on every start
+		catalog = Catalog.load();
 		
 		// initialize `trackDir` for saving, loading tracks
 		trackDir = "./src/audio/tracks/";
@@ -96,46 +85,35 @@ public class MainFrame extends JFrame implements ActionListener
 	}
 	
 	/**
-	 * @function listFilesForFolder()
-	 * @param folder we iterate through the files/subfolders
+	 * @function listSounds()
 	 * 
 	 * called by `showContent()`
-	 * recursively list sound files in the (sub)directory
-	 * create buttons and labels as needed
+	 * list the sounds of `catalog`, which are sorted by name so each folder's sounds are together
+	 * create buttons and labels as needed, no files are read
 	 */
-	public void listFilesForFolder (File folder)
+	public void listSounds ()
 	{
-		// iterate through each file, subfolder in `folder`
-		for(File fileEntry : folder.listFiles())
+		String currentFolder = null;
+		for (Catalog.Entry entry : catalog.getEntries())
 		{
-			if (fileEntry.isDirectory())
-			{
-				// place subfolder label in `searchPanel`
-				// recursively call this function on the subfolder
-				searchPanel.add(new JLabel(fileEntry.getName()));
-				listFilesForFolder(fileEntry);
-			}
-			else
+			// ex: dreamer/bass
+			String name = entry.getName();
+			// ex: dreamer
+			String subfolder = name.contains("/") ? name.substring(0, name.lastIndexOf('/')) : "";
+			
+			// place subfolder label in `searchPanel` before its first sound
+			if (!subfolder.equals(currentFolder))
 			{
-				// convert filepath from `folder` to String
-				// ex: .\src\audio\sounds\dreamer
-				String subfolder = folder.toString();
-				// remove prefix
-				// ex: dreamer
-				subfolder = subfolder.replace(".\\src\\audio\\sounds\\", "");
-				// concatenate `fileEntry` file name
-				// ex: dreamer/bass.txt
-				subfolder = subfolder + "/" + fileEntry.getName();
-				// remove `.txt`
-				// ex: dreamer/bass
-				subfolder = subfolder.substring(0, subfolder.lastIndexOf("."));
-				
-				// initialize `tempButton`, assign ActionListener, add to `searchPanel`
-				tempButton = new JButton(subfolder);
-				tempButton.setActionCommand(subfolder);
-				tempButton.addActionListener(this);
-				searchPanel.add(tempButton);
+				searchPanel.add(new JLabel(subfolder));
+				currentFolder = subfolder;
 			}
+			
+			// initialize `tempButton`, assign ActionListener, add to `searchPanel`
+			tempButton = new JButton(name);
+			tempButton.setActionCommand(name);
+			tempButton.setToolTipText(String.format("%.1f s, %d commands", entry.getSeconds(), entry.getCommands()));
+			tempButton.addActionListener(this);
+			searchPanel.add(tempButton);
 		}
 	}
 	
@@ -162,8 +140,8 @@ public class MainFrame extends JFrame implements ActionListener
 		searchScrollPane = new JScrollPane(searchPanel, v, h);
 		searchScrollPane.setPreferredSize(new Dimension(200, 2000));
 		
-		// add files, folders from sound directory to `searchPanel`
-		listFilesForFolder(folder);
+		// add folders, sounds from the library index to `searchPanel`
+		listSounds();
 
 
 		// initialize `contentPanel` (center)
@@ -230,45 +208,15 @@ public class MainFrame extends JFrame implements ActionListener
 		repaint();
 	}
 	
-	/**
-	 * @function istream()
-	 * @param file, sound
-	 * @return InputStream, of the sound we want to play
-	 */
-	private static InputStream istream(String file)
-	{
-		return MainFrame.class.getResourceAsStream("/audio/sounds/" + file + ".txt");
-	}
-
 	/**
 	 * @function playSounds()
 	 * 
-	 * play each sound in `music.get(index)`
+	 * play all sequences in parallel, and each sound in a sequence sequentially
+	 * `engine` stops the previous playback and renders every sequence into one audio line
 	 */
-	public void playSounds(int index)
+	public void playSounds()
 	{
-        for (PSG psg : music.get(index))
-        {
-        	psg.setPlaybackSpeed(PB * psg.getPlaybackSpeed());
-        	psg.start();
-        	System.out.println("playing " + psg.getName() + " from track " + index);
-        	
-        	// sleep while sound plays
-        	while (psg.isRunning())
-            {
-            	// try-catch block for `sleep()` command
-				try
-				{
-					Thread.sleep(1);
-				}
-				catch (InterruptedException e1)
-				{
-					e1.printStackTrace();
-				}
-            }
-        	// stop the sound
-        	psg.stop();
-        }
+		engine.play();
 	}
 		
 	/**
@@ -295,19 +243,7 @@ public class MainFrame extends JFrame implements ActionListener
 			// `playButton` plays all sequences in parallel, and each sound in the sequence sequentially
 			case "playButton":
 				System.out.printf("user pressed playButton\n\n");
-				
-				// use ExecutorService to play sequences concurrently
-				executor = Executors.newFixedThreadPool(5);
-				for (int i=0; i<5; ++i)
-				{
-					// `j` cannot be changed
-					final int j = i;
-					executor.submit(() -> {
-						playSounds(j);
-					});
-				}
-				// shutdown service after use
-				executor.shutdown();
+				playSounds();
 				break;
 			
 			// `saveButton` gives us the functionality of saving our tracks
@@ -324,31 +260,10 @@ public class MainFrame extends JFrame implements ActionListener
 				
 				String fileToWrite = trackDir + fileName;
 				
-				// write to file
-				// try-with-resources block automatically closes `writer`
-				try (FileWriter writer = new FileWriter(fileToWrite))
+				// write all track names to file, sounds separated by comma, sequences by new line
+				try
 				{
-					// write all track names to file
-					for (int i=0; i<5; ++i)
-					{
-						int seqSize = music.get(i).size();
-						for (int j=0; j<seqSize; ++j)
-						{
-							writer.write(music.get(i).get(j).getName());
-							
-							// if this is not the last sound, we separate by comma
-							if (j != seqSize-1)
-							{
-								writer.write(",");
-							}
-						}
-						
-						// if this is not the last sequence, separate by new line
-						if (i != 4)
-						{
-							writer.write(System.lineSeparator());
-						}
-					}
+					engine.saveTrack(new File(fileToWrite));
 				}
 				catch (IOException e2)
 				{
@@ -375,28 +290,22 @@ public class MainFrame extends JFrame implements ActionListener
 				String fileToRead = trackDir + fileName;
 				
 				// read from file
-				// try-with-resources block automatically closes `scanner`
-				try (Scanner scanner = new Scanner(new FileReader(fileToRead)))
+				try
 				{
-					// first, clear out all sounds currently in `music`, `blocks`
-					clearSounds();
+					// `engine` only replaces its sequences if the whole track loads
+					engine.loadTrack(new File(fileToRead));
 					
-					// read the file, adding to `music` and creating `blocks` as needed
-					int seqIndex = 0;
-					while (scanner.hasNextLine())
+					// clear out all `blocks`, then create blocks for the loaded sounds
+					clearBlocks();
+					List<List<PSG>> music = engine.getSequences();
+					for (int seqIndex=0; seqIndex<music.size(); ++seqIndex)
 					{
-						String line = scanner.nextLine();
-						if (!line.equals(""))
+						for (int index=0; index<music.get(seqIndex).size(); ++index)
 						{
-							String[] soundSources = line.split(",");
-							
-							for (String soundSource : soundSources)
-							{
-								System.out.println(soundSource);
-								addSound(soundSource, seqIndex);
-							}
+							PSG sound = music.get(seqIndex).get(index);
+							System.out.println(sound.getName());
+							trackPanel.addBlock(sound.getName(), SequencerPanel.blockWidth(sound), seqIndex, index);
 						}
-						++seqIndex;
 					}
 				}
 				catch (IOException e2)
@@ -414,7 +323,7 @@ public class MainFrame extends JFrame implements ActionListener
 				
 			default:
 				// user pressed sound button
-				// add to `music`, `sequence`, and create block
+				// add to `engine`, `sequence`, and create block
 				// `sequence` define which sequence to add sound to
 				addSound(source);
 				
@@ -443,56 +352,61 @@ public class MainFrame extends JFrame implements ActionListener
 	 * @param source, sound to be added
 	 * @param seqIndex, sequence to add to
 	 * 
-	 * this signature is directly called by `loadButton`,
-	 * also called by sound buttons as shown above
+	 * this signature is called by sound buttons as shown above
 	 * 
-	 * add `source` to `music`, create block within `seqIndex`
+	 * add `source` to `engine`, create block within `seqIndex`
 	 */
 	public void addSound(String source, int seqIndex)
 	{
-		CachedPSG sound = new CachedPSG(istream(source), source);
-		int soundLength = sound.getLength();
-		
-		// `index` to sequentially add `source` to music.get(seqIndex)
-		int index = music.get(seqIndex).size();
+		// `index` to sequentially add `source` to the sequence
+		int index = engine.getSequences().get(seqIndex).size();
 		
 		// add to tail end of the sequence
-		music.get(seqIndex).add(sound);
-		System.out.printf("added %s, length %d to music.get(%d) at index %d\n", source, soundLength, seqIndex, index);
+		PSG sound;
+		try
+		{
+			sound = engine.addSound(source, seqIndex);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return;
+		}
+		long soundLength = sound.getFrameLength();
+		System.out.printf("added %s, length %d frames to sequence %d at index %d\n", source, soundLength, seqIndex, index);
 		
-		// create corresponding block in sequence panel
-		trackPanel.addBlock(source, soundLength, seqIndex, index);
+		// create corresponding block in sequence panel, as wide as the sound is long
+		trackPanel.addBlock(source, SequencerPanel.blockWidth(sound), seqIndex, index);
 	}
 	
 	/**
 	 * @function removeSound()
 	 * @param panel
-	 * @param index, sound location in `music`
+	 * @param index, sound location in the sequence
 	 * 
 	 * called by individual BlockPanel when they are clicked
 	 * 
-	 * remove sound from `music`
+	 * remove sound from `engine`
 	 */
 	public static void removeSound (int panel, int index)
 	{
-		music.get(panel).remove(index);
+		engine.removeSound(panel, index);
 	}
 	
 	/**
-	 * @function clearSounds()
+	 * @function clearBlocks()
 	 * 
 	 * called when loading track
-	 * clears all sounds in sequences, removing them from `music` and `blocks`
+	 * clears all blocks in sequences, `engine` has already replaced the sounds
 	 * changes get validated when new sounds are added
 	 */
-	public void clearSounds()
+	public void clearBlocks()
 	{
-		for (int i=0; i<5; ++i)
+		for (int i=0; i<Engine.SEQUENCES; ++i)
 		{
-			int seqSize = music.get(i).size();
+			int seqSize = SequencerPanel.blocks.get(i).size();
 			for (int j=0; j<seqSize; ++j)
 			{
-				music.get(i).remove(0);
 				SequencerPanel.blocks.get(i).get(0).setPreferredSize(new Dimension(0,0));
 				SequencerPanel.blocks.get(i).remove(0);
 			}
@@ -506,6 +420,7 @@ public class MainFrame extends JFrame implements ActionListener
 	 * @param args, command line arguments, not used
 	 * 
 	 * main function executes our project, displaying window
+	 * use `SequencerCli` to run the engine without a window
 	 */
 	@SuppressWarnings("unused")
 	public static void main(String[] args)
@@ -0,0 +1,90 @@
+package audio;
+
+/**
+ * @author Shreyas Raghunath
+ * The Metrics interface receives what the engine measures while it plays and renders: how long
+ * each command takes to synthesize, how the sample cache is used, how full each output line is
+ * and when it runs dry, and how many voices and threads are active. Every method does nothing by
+ * default, so an implementation only overrides what it records. One implementation is installed
+ * for the whole JVM with install(), or with the audio.metrics system property (audio.metrics=jfr
+ * records JFR events if the jfr source folder is compiled in). When none is installed, the engine
+ * compares against NONE and skips even reading the clock, so metrics cost nothing when disabled.
+ * The methods are called from the playback and render threads, so they must be thread-safe and
+ * must not block.
+ * */
+public interface Metrics {
+    /**
+     * The metrics that record nothing. Installed unless something else is.
+     * */
+    Metrics NONE = new Metrics() {
+    };
+
+    /**
+     * A command was synthesized: the whole sample of a cached command, or one block of a streamed one.
+     * @param sound The name of the sound.
+     * @param command The index of the command in the sound.
+     * @param frames The number of samples generated.
+     * @param nanos How long it took in nanoseconds.
+     * */
+    default void synthesized(String sound, int command, int frames, long nanos) {
+    }
+    /**
+     * A sample was found in the sample cache, or was already being generated by another thread.
+     * */
+    default void cacheHit() {
+    }
+    /**
+     * A sample was not in the sample cache and had to be loaded from the disk cache or generated.
+     * */
+    default void cacheMiss() {
+    }
+    /**
+     * A sample was evicted from the sample cache to stay within its budget.
+     * @param bytes The size of the sample in bytes.
+     * */
+    default void cacheEvicted(long bytes) {
+    }
+    /**
+     * The size of the sample cache changed.
+     * @param bytes The total size of the cached samples in bytes.
+     * @param capacity The budget in bytes.
+     * */
+    default void cacheSize(long bytes, long capacity) {
+    }
+    /**
+     * A block is about to be written to an output line.
+     * @param line The id of the mixer that owns the line.
+     * @param queued The number of bytes queued in the line that have not been played yet.
+     * @param capacity The size of the line buffer in bytes.
+     * */
+    default void lineFill(int line, int queued, int capacity) {
+    }
+    /**
+     * An output line ran dry before the next block was written, so the playback stuttered.
+     * @param line The id of the mixer that owns the line.
+     * */
+    default void underrun(int line) {
+    }
+    /**
+     * A block was mixed.
+     * @param line The id of the mixer.
+     * @param voices The number of sequences that played in the block.
+     * @param threads The number of playback and render threads that were busy.
+     * */
+    default void mixed(int line, int voices, int threads) {
+    }
+    /**
+     * Install metrics for the whole JVM.
+     * @param metrics The metrics, or NONE to stop recording.
+     * */
+    static void install(Metrics metrics) {
+        Instrumentation.install(metrics);
+    }
+    /**
+     * Get the metrics that are installed.
+     * @return The metrics, NONE if nothing is installed.
+     * */
+    static Metrics installed() {
+        return Instrumentation.metrics;
+    }
+}
@@ -0,0 +1,194 @@
+package audio;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Shreyas Raghunath
+ * The MetricsRecorder class is a Metrics implementation that keeps counters and histograms in
+ * memory: synthesis time per command, sample cache hits, misses and evictions, the fill level and
+ * underruns of every output line, and the peak number of voices and busy threads. Everything is
+ * recorded with LongAdders and atomic arrays, so the playback threads never wait for each other.
+ * toString() prints a report, e.g. SequencerCli --metrics prints it after a command.
+ * */
+public final class MetricsRecorder implements Metrics {
+    /**
+     * Synthesis time per command in nanoseconds.
+     * */
+    private final Histogram synthesis = new Histogram(false);
+    /**
+     * The number of samples synthesized.
+     * */
+    private final LongAdder frames = new LongAdder();
+    /**
+     * Sample cache statistics.
+     * */
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder(), evictedBytes = new LongAdder();
+    /**
+     * The size and budget of the sample cache the last time it changed, and its peak size.
+     * */
+    private volatile long cacheBytes, cacheCapacity;
+    private final LongAccumulator peakCacheBytes = new LongAccumulator(Math::max, 0);
+    /**
+     * The statistics of each output line by mixer id.
+     * */
+    private final Map<Integer, Line> lines = new ConcurrentHashMap<>();
+    /**
+     * The peak number of voices and busy threads in a mixed block.
+     * */
+    private final LongAccumulator peakVoices = new LongAccumulator(Math::max, 0), peakThreads = new LongAccumulator(Math::max, 0);
+
+    public void synthesized(String sound, int command, int frames, long nanos) {
+        synthesis.add(nanos);
+        this.frames.add(frames);
+    }
+    public void cacheHit() {
+        hits.increment();
+    }
+    public void cacheMiss() {
+        misses.increment();
+    }
+    public void cacheEvicted(long bytes) {
+        evictions.increment();
+        evictedBytes.add(bytes);
+    }
+    public void cacheSize(long bytes, long capacity) {
+        cacheBytes = bytes;
+        cacheCapacity = capacity;
+        peakCacheBytes.accumulate(bytes);
+    }
+    public void lineFill(int line, int queued, int capacity) {
+        line(line).fill.add(100L * queued / capacity); // In percent of the line buffer
+    }
+    public void underrun(int line) {
+        line(line).underruns.increment();
+    }
+    public void mixed(int line, int voices, int threads) {
+        peakVoices.accumulate(voices);
+        peakThreads.accumulate(threads);
+    }
+    /**
+     * Get the statistics of an output line, creating them on its first block.
+     * @param id The id of the mixer.
+     * @return The statistics.
+     * */
+    private Line line(int id) {
+        return lines.computeIfAbsent(id, k -> new Line());
+    }
+    /**
+     * Get the number of commands synthesized, counting every block of a streamed command.
+     * @return The number of commands.
+     * */
+    public long getSynthesized() {
+        return synthesis.count();
+    }
+    /**
+     * Get a percentile of the synthesis time per command.
+     * @param p The percentile, from 0 to 100.
+     * @return An upper bound of the percentile in nanoseconds (the top of its histogram bucket).
+     * */
+    public long getSynthesisNanos(double p) {
+        return synthesis.percentile(p);
+    }
+    /**
+     * @return The number of sample cache hits.
+     * */
+    public long getCacheHits() {
+        return hits.sum();
+    }
+    /**
+     * @return The number of sample cache misses.
+     * */
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+    /**
+     * @return The number of samples evicted from the sample cache.
+     * */
+    public long getCacheEvictions() {
+        return evictions.sum();
+    }
+    /**
+     * Get the number of underruns of all output lines.
+     * @return The number of underruns.
+     * */
+    public long getUnderruns() {
+        long sum = 0;
+        for (Line l : lines.values()) sum += l.underruns.sum();
+        return sum;
+    }
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        long requests = hits.sum() + misses.sum();
+        sb.append(String.format("synthesis: %d commands, %d samples, p50 %s, p99 %s, max %s%n", synthesis.count(), frames.sum(),
+                time(synthesis.percentile(50)), time(synthesis.percentile(99)), time(synthesis.percentile(100))));
+        sb.append(String.format("cache: %d hits, %d misses (%.1f%% hits), %d evictions (%d bytes), %d/%d bytes, peak %d%n", hits.sum(), misses.sum(),
+                requests == 0 ? 0 : 100.0 * hits.sum() / requests, evictions.sum(), evictedBytes.sum(), cacheBytes, cacheCapacity, peakCacheBytes.get()));
+        for (Map.Entry<Integer, Line> e : lines.entrySet()) {
+            Line l = e.getValue();
+            sb.append(String.format("line %d: %d writes, fill p1 %d%%, p50 %d%%, %d underruns%n", e.getKey(), l.fill.count(),
+                    l.fill.percentile(1), l.fill.percentile(50), l.underruns.sum()));
+        }
+        sb.append(String.format("peak voices %d, peak busy threads %d", peakVoices.get(), peakThreads.get()));
+        return sb.toString();
+    }
+    /**
+     * Format a duration.
+     * @param nanos The duration in nanoseconds.
+     * @return The duration in microseconds or milliseconds.
+     * */
+    private static String time(long nanos) {
+        return nanos < 1_000_000 ? String.format("%.1f us", nanos / 1e3) : String.format("%.2f ms", nanos / 1e6);
+    }
+    /**
+     * @author Shreyas Raghunath
+     * The statistics of an output line.
+     * */
+    private static final class Line {
+        /**
+         * The fill level before each write, in percent.
+         * */
+        final Histogram fill = new Histogram(true);
+        final LongAdder underruns = new LongAdder();
+    }
+    /**
+     * @author Shreyas Raghunath
+     * A histogram of non-negative values that is cheap to record from any thread. Either one bucket
+     * per value from 0 to 100 (percentages), or power-of-two buckets, precise to within a factor of
+     * two: bucket b counts the values in [2^(b-1), 2^b), bucket 0 counts 0.
+     * */
+    private static final class Histogram {
+        private final boolean linear;
+        private final AtomicLongArray buckets;
+
+        Histogram(boolean linear) {
+            this.linear = linear;
+            buckets = new AtomicLongArray(linear ? 101 : 64);
+        }
+        void add(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(linear ? (int) Math.min(100, value) : 64 - Long.numberOfLeadingZeros(value));
+        }
+        long count() {
+            long n = 0;
+            for (int b = 0; b < buckets.length(); b++) n += buckets.get(b);
+            return n;
+        }
+        /**
+         * @param p The percentile, from 0 to 100.
+         * @return The top of the bucket the percentile falls in, or 0 if nothing was recorded.
+         * */
+        long percentile(double p) {
+            long n = count(), rank = Math.max(1, (long) Math.ceil(p / 100 * n)), seen = 0;
+            for (int b = 0; b < buckets.length(); b++) {
+                seen += buckets.get(b);
+                if (seen >= rank) return linear || b == 0 ? b : (1L << b) - 1;
+            }
+            return 0;
+        }
+    }
+}
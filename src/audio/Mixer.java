@@ -0,0 +1,637 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author Shreyas Raghunath
+ * The Mixer class is the audio output of one playback. It owns the SourceDataLine of the
+ * playback, which is fed by the shared PlaybackScheduler instead of a thread of its own, or by
+ * the calling thread in run(). Every iteration it pulls one fixed-size block from the current PSG
+ * of each sequence, sums the blocks into a shared mix buffer, clips the result and writes it to
+ * the line. Since every sequence advances by exactly one block per iteration, and the next PSG of
+ * a sequence starts on the sample right after the previous one ends, the sequences stay
+ * sample-accurate with each other. The Transport of the mixer reports the position of the
+ * playback and completes scheduled futures, e.g. when a PSG starts to be heard.
+ * The voices are mixed as floats, which leaves headroom, and converted to the output format
+ * only once at the end, with optional TPDF dither.
+ * The sequences can be edited while they play: edit() publishes a new snapshot of them through
+ * an atomic reference, and the render loop swaps it in at the start of the next block. The audio
+ * path never takes a lock and never sees a list that is being changed.
+ * */
+public class Mixer implements Runnable {
+    /**
+     * The number of frames rendered by each PSG per iteration of the render loop.
+     * */
+    static final int BLOCK_SIZE = 1024;
+    /**
+     * The number of blocks the output line buffers before a write blocks.
+     * */
+    private static final int LINE_BLOCKS = 4;
+    /**
+     * The number of mixers created so far, used to give each one an id for Metrics.
+     * */
+    private static final AtomicInteger created = new AtomicInteger();
+    /**
+     * The id of this mixer, which identifies its output line in Metrics.
+     * */
+    private final int id = created.incrementAndGet();
+    /**
+     * The sequences to play, made of this mixer's own copies of the PSGs. Each sequence is played back
+     * in order, and all sequences are played in parallel. Only replaced by the render loop, see edit().
+     * */
+    private List<List<PSG>> sequences;
+    /**
+     * The copy this mixer made for each PSG of the latest sequences prepared by edit(). Guarded by edits.
+     * */
+    private Map<PSG, PSG> copies;
+    /**
+     * The copy for each PSG of the sequences the render loop plays, so that an edit that is prepared
+     * before the previous one is picked up still finds the copies that are playing.
+     * */
+    private volatile Map<PSG, PSG> playing;
+    /**
+     * The number of edits requested so far. Only the latest one is prepared and published.
+     * */
+    private final AtomicInteger requested = new AtomicInteger();
+    /**
+     * The latest edit prepared by edit() that the render loop has not picked up yet, or null.
+     * */
+    private final AtomicReference<Edit> edits = new AtomicReference<>();
+    /**
+     * The index of the PSG that is currently playing in each sequence.
+     * */
+    private final int[] positions;
+    /**
+     * Whether the current PSG of each sequence has been started.
+     * */
+    private final boolean[] started;
+    /**
+     * The mix buffer. Several voices are summed in it before the result is clipped.
+     * */
+    private final float[] mix = new float[BLOCK_SIZE];
+    /**
+     * The block each PSG renders into before it is added to the mix buffer.
+     * */
+    private final float[] block = new float[BLOCK_SIZE];
+    /**
+     * The output format.
+     * */
+    private final AudioFormat format;
+    /**
+     * The clipped output block that is written to the line, in the output format.
+     * */
+    private final byte[] out;
+    /**
+     * Whether TPDF dither is added before the mix is quantized to the output format.
+     * */
+    private boolean dither;
+    /**
+     * The state of the xorshift generator used for dither.
+     * */
+    private long seed = System.nanoTime() | 1;
+    /**
+     * The sound channel to which the mixed sample data is written to. Read by stop() from other threads.
+     * */
+    private volatile SourceDataLine line;
+    /**
+     * Completes once the playback has been closed: the render loop will not touch the line or the PSGs again.
+     * */
+    private final CompletableFuture<Void> closed = new CompletableFuture<>();
+    /**
+     * The thread that runs the blocking render loop, if the playback was started with run().
+     * */
+    private volatile Thread renderThread;
+    /**
+     * Whether the playback is running.
+     * */
+    private volatile boolean running;
+    /**
+     * Whether the playback has been started, and whether every sequence has been mixed.
+     * */
+    private boolean launched, ended;
+    /**
+     * Whether the samples of every sequence are generated in parallel before playback starts.
+     * */
+    private boolean prerender = true;
+    /**
+     * The clock of the playback.
+     * */
+    private final Transport transport = new Transport();
+    /**
+     * Told when each sound of the playback starts, or null.
+     * */
+    private volatile Listener listener;
+    /**
+     * The frame of the track at which the playback starts.
+     * */
+    private long startFrame;
+    /**
+     * Where each sequence starts: the frame within the PSG at positions[s] that is played first.
+     * Only used before that PSG has been started.
+     * */
+    private final long[] offsets;
+    /**
+     * @param sequences The sequences to play. They are copied, so later changes to the lists only affect this mixer through edit().
+     * */
+    public Mixer(List<List<PSG>> sequences) {
+        this(sequences, CachedPSG.FORMAT);
+    }
+    /**
+     * @param sequences The sequences to play. They are copied, so later changes to the lists only affect this mixer through edit().
+     * The mixer plays its own copies of the PSGs at the sample rate of the format, so the PSGs themselves are never
+     * changed and any number of mixers can play them at once.
+     * @param format The output format. See checkFormat().
+     * */
+    public Mixer(List<List<PSG>> sequences, AudioFormat format) {
+        checkFormat(format);
+        this.format = format;
+        out = new byte[BLOCK_SIZE * format.getFrameSize()];
+        Edit owned = own(snapshot(sequences), null);
+        this.sequences = owned.sequences;
+        copies = playing = owned.copies;
+        positions = new int[sequences.size()];
+        started = new boolean[sequences.size()];
+        offsets = new long[sequences.size()];
+    }
+    /**
+     * Check that the mixer can convert to a format.
+     * @param format A format. It must be signed PCM with 8, 16, 24 or 32 bits and 1 or 2 channels, at any sample rate.
+     * @throws IllegalArgumentException If the format is not supported.
+     * */
+    public static void checkFormat(AudioFormat format) {
+        int bits = format.getSampleSizeInBits();
+        if (format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED || bits % 8 != 0 || bits < 8 || bits > 32
+                || format.getChannels() < 1 || format.getChannels() > 2 || format.getFrameSize() != bits / 8 * format.getChannels()
+                || !(format.getSampleRate() > 0)) {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+    }
+    /**
+     * Choose whether TPDF dither is added before the mix is quantized to the output format.
+     * It trades the distortion of quantizing quiet passages for a little constant noise.
+     * @param dither Dither (true = yes, false = no)
+     * @return The mixer itself.
+     * */
+    public Mixer setDither(boolean dither) {
+        this.dither = dither;
+        return this;
+    }
+    /**
+     * Get the output format.
+     * @return The format.
+     * */
+    public AudioFormat getFormat() {
+        return format;
+    }
+    /**
+     * Choose what is told when each sound of the playback starts.
+     * @param listener The listener, or null for none.
+     * @return The mixer itself.
+     * */
+    public Mixer setListener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+    /**
+     * Choose whether the samples of every sequence are generated in parallel before playback starts.
+     * Otherwise each sample is generated when it is first played.
+     * @param prerender Pre-render (true = yes, false = no)
+     * @return The mixer itself.
+     * */
+    public Mixer setPrerender(boolean prerender) {
+        this.prerender = prerender;
+        return this;
+    }
+    /**
+     * Replace the sequences while they play, e.g. after a sound has been added or removed. The
+     * edit is prepared on the PlaybackScheduler's preparing threads, like a playback: the new PSGs
+     * are copied and, unless pre-rendering is turned off, pre-rendered there, so their first notes
+     * are never synthesized on the playback thread. It is then picked up at the start of the next
+     * block: the PSG that is playing in each sequence carries on if it is still in the sequence,
+     * otherwise the sequence moves on to the sound that took its place. Can be called from any
+     * thread, and never blocks the playback.
+     * @param sequences The new sequences, as many as before. They are copied.
+     * @throws IllegalArgumentException If the number of sequences changes.
+     * */
+    public void edit(List<List<PSG>> sequences) {
+        if (sequences.size() != positions.length) throw new IllegalArgumentException("Expected " + positions.length + " sequences");
+        List<List<PSG>> snapshot = snapshot(sequences);
+        int edit = requested.incrementAndGet();
+        PlaybackScheduler.prepare(() -> {
+            synchronized (edits) {
+                if (edit != requested.get()) return; // Only the latest edit matters
+                List<PSG> added = new ArrayList<>();
+                Edit prepared = own(snapshot, added); // The PSGs that were already there keep their copies
+                if (prerender) {
+                    List<Runnable> tasks = new ArrayList<>();
+                    for (PSG psg : added) tasks.add(psg::prerender);
+                    ParallelRenderer.runAll(tasks);
+                }
+                if (edit != requested.get()) return; // Replaced while pre-rendering
+                copies = prepared.copies;
+                edits.set(prepared); // Replaces an edit that has not been picked up yet
+            }
+        });
+    }
+    /**
+     * Swap in the latest edit prepared by edit(), if there is one. Called by the render loop between
+     * blocks; everything was built when the edit was prepared, so it allocates nothing.
+     * */
+    private void applyEdits() {
+        Edit edit = edits.getAndSet(null);
+        if (edit == null) return;
+        List<List<PSG>> edited = edit.sequences;
+        for (int s = 0; s < edited.size(); s++) {
+            List<PSG> old = sequences.get(s), sequence = edited.get(s);
+            PSG current = positions[s] < old.size() ? old.get(positions[s]) : null;
+            positions[s] = position(old, edit.indexes.get(s), positions[s]);
+            if (current != null && (positions[s] == sequence.size() || sequence.get(positions[s]) != current)) { // The current PSG was removed
+                if (started[s]) current.stop();
+                started[s] = false;
+                offsets[s] = 0;
+            }
+        }
+        sequences = edited;
+        playing = edit.copies;
+    }
+    /**
+     * Find where a sequence carries on after an edit: at the first PSG from the old position on that
+     * is still there, or else right after the last earlier one that is.
+     * @param old The sequence before the edit.
+     * @param index The position of each PSG in the sequence after the edit.
+     * @param position The position in the old sequence.
+     * @return The position in the new sequence.
+     * */
+    private static int position(List<PSG> old, Map<PSG, Integer> index, int position) {
+        for (int k = position; k < old.size(); k++) {
+            Integer i = index.get(old.get(k));
+            if (i != null) return i;
+        }
+        for (int k = Math.min(position, old.size()) - 1; k >= 0; k--) {
+            Integer i = index.get(old.get(k));
+            if (i != null) return i + 1;
+        }
+        return 0; // Nothing that was there before is left
+    }
+    /**
+     * Replace the PSGs of sequences with this mixer's copies, reusing the copies of the PSGs it already
+     * plays or has prepared. Copies of PSGs that are no longer in the sequences are forgotten.
+     * Called with the lock of edits held, or by the constructor.
+     * @param sequences The sequences.
+     * @param added The list the new copies are added to, or null.
+     * @return The edit that plays the copies.
+     * */
+    private Edit own(List<List<PSG>> sequences, List<PSG> added) {
+        Map<PSG, PSG> kept = new IdentityHashMap<>(), prepared = copies, current = playing;
+        List<List<PSG>> own = new ArrayList<>(sequences.size());
+        List<Map<PSG, Integer>> indexes = new ArrayList<>(sequences.size());
+        for (List<PSG> sequence : sequences) {
+            List<PSG> list = new ArrayList<>(sequence.size());
+            Map<PSG, Integer> index = new IdentityHashMap<>();
+            for (PSG psg : sequence) {
+                PSG copy = kept.get(psg);
+                if (copy == null && prepared != null) copy = prepared.get(psg);
+                if (copy == null && current != null) copy = current.get(psg);
+                if (copy == null) {
+                    copy = psg.copy().setSampleRate(format.getSampleRate());
+                    if (added != null) added.add(copy);
+                }
+                kept.put(psg, copy);
+                index.put(copy, list.size());
+                list.add(copy);
+            }
+            own.add(Collections.unmodifiableList(list));
+            indexes.add(index);
+        }
+        return new Edit(Collections.unmodifiableList(own), kept, indexes);
+    }
+    /**
+     * @author Shreyas Raghunath
+     * Sequences made of this mixer's copies, ready for the render loop to swap in.
+     * */
+    private static final class Edit {
+        /**
+         * The sequences.
+         * */
+        final List<List<PSG>> sequences;
+        /**
+         * The copy for each PSG of the sequences.
+         * */
+        final Map<PSG, PSG> copies;
+        /**
+         * The position of each copy in its sequence, for each sequence.
+         * */
+        final List<Map<PSG, Integer>> indexes;
+
+        Edit(List<List<PSG>> sequences, Map<PSG, PSG> copies, List<Map<PSG, Integer>> indexes) {
+            this.sequences = sequences;
+            this.copies = copies;
+            this.indexes = indexes;
+        }
+    }
+    /**
+     * Copy sequences into an immutable snapshot.
+     * @param sequences The sequences.
+     * @return The snapshot.
+     * */
+    private static List<List<PSG>> snapshot(List<List<PSG>> sequences) {
+        List<List<PSG>> copy = new ArrayList<>(sequences.size());
+        for (List<PSG> sequence : sequences) copy.add(Collections.unmodifiableList(new ArrayList<>(sequence)));
+        return Collections.unmodifiableList(copy);
+    }
+    /**
+     * Start the playback at a frame of the track instead of at its beginning. Every sequence finds
+     * the PSG that plays at that frame on its Timeline and starts it part-way through its note, so
+     * all sequences stay aligned. Must be called before the playback starts.
+     * @param frame The frame. The transport still counts from 0.
+     * @return The mixer itself.
+     * */
+    public synchronized Mixer setStart(long frame) {
+        if (launched) throw new IllegalStateException("Playback has already started");
+        startFrame = Math.max(0, frame);
+        for (int s = 0; s < sequences.size(); s++) {
+            Timeline timeline = new Timeline(sequences.get(s));
+            int index = timeline.indexAt(startFrame);
+            positions[s] = index < 0 ? timeline.size() : index;
+            offsets[s] = index < 0 ? 0 : startFrame - timeline.getStart(index);
+        }
+        return this;
+    }
+    /**
+     * Get the frame of the track at which the playback starts.
+     * @return The frame.
+     * */
+    public long getStart() {
+        return startFrame;
+    }
+    /**
+     * Get the clock of the playback.
+     * @return The transport.
+     * */
+    public Transport getTransport() {
+        return transport;
+    }
+    /**
+     * Generate the samples of every sequence in parallel, so that mixing only has to copy them.
+     * */
+    void prerender() {
+        List<Runnable> tasks = new ArrayList<>();
+        boolean playback = launched;
+        for (int s = 0; s < sequences.size(); s++) {
+            List<PSG> sequence = sequences.get(s);
+            for (PSG psg : sequence.subList(positions[s], sequence.size())) { // Skip what is before the start
+                tasks.add(() -> {
+                    if (running || !playback) psg.prerender(); // Give up once a started playback is stopped
+                });
+            }
+        }
+        ParallelRenderer.runAll(tasks);
+    }
+    /**
+     * Start the playback on the PlaybackScheduler and return immediately. The mixer does not create a thread:
+     * the samples are pre-rendered and the line is opened by the scheduler's preparing threads, then the
+     * playback is fed by its playback threads.
+     * */
+    public synchronized void start() {
+        if (launched) return;
+        launched = running = true;
+        PlaybackScheduler.prepare(() -> {
+            try {
+                if (running) open();
+            } catch (LineUnavailableException | RuntimeException e) { // No audio device, or none that supports the format
+                e.printStackTrace();
+                close();
+                return;
+            }
+            PlaybackScheduler.submit(this::pump);
+        });
+    }
+    /**
+     * Wait until the playback has finished.
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     * */
+    public void join() throws InterruptedException {
+        synchronized (this) {
+            if (!launched) return;
+        }
+        try {
+            transport.getCompletion().get();
+        } catch (ExecutionException e) { // The completion is never completed exceptionally
+            throw new IllegalStateException(e);
+        }
+    }
+    /**
+     * Stop playback and wait until the render loop has let go of the line and the PSGs. Samples that
+     * are still queued in the line are discarded. Called from the render loop itself, e.g. by a
+     * transport event, it cannot wait and returns at once.
+     * */
+    public void stop() {
+        boolean wait;
+        synchronized (this) {
+            running = false;
+            wait = launched;
+        }
+        SourceDataLine l = line;
+        if (l != null) { // Unblock a pending write
+            l.stop();
+            l.flush();
+        }
+        if (wait && !PlaybackScheduler.isSchedulerThread() && Thread.currentThread() != renderThread) closed.join();
+    }
+    /**
+     * Get the state of the mixer.
+     * @return If the mixer is still playing, return true, false otherwise.
+     * */
+    public boolean isRunning() {
+        return running;
+    }
+    /**
+     * The blocking render loop. Mixes blocks and writes them to the line on the calling thread until
+     * every sequence has finished or the mixer is stopped.
+     * */
+    public void run() {
+        synchronized (this) {
+            if (launched) return;
+            launched = running = true;
+        }
+        renderThread = Thread.currentThread();
+        try {
+            open();
+            for (int n = mix(out, BLOCK_SIZE); running && n > 0; n = mix(out, BLOCK_SIZE)) {
+                measureLine();
+                line.write(out, 0, n * format.getFrameSize());
+            }
+            if (running) line.drain();
+        } catch (LineUnavailableException | IllegalArgumentException e) { // No audio device, or none that supports the format
+            e.printStackTrace();
+        } finally {
+            close();
+        }
+    }
+    /**
+     * One step of a playback started with start(). Writes as many blocks as the line can take
+     * without blocking, then reschedules itself until the playback has finished or been stopped.
+     * The line has been opened by then, unless the playback was stopped first.
+     * */
+    private void pump() {
+        try {
+            while (running && !ended && line.available() >= out.length) {
+                int n = mix(out, BLOCK_SIZE);
+                measureLine();
+                line.write(out, 0, n * format.getFrameSize());
+                ended = n < BLOCK_SIZE;
+            }
+            if (running && (!ended || transport.getPosition() < transport.getRenderedFrames() && line.available() < line.getBufferSize())) { // Still playing, or draining
+                PlaybackScheduler.reschedule(this::pump);
+                return;
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+        close();
+    }
+    /**
+     * Report how full the line is to the installed metrics, before a block is written to it.
+     * An empty line after the first block means it ran dry: an underrun.
+     * */
+    private void measureLine() {
+        Metrics metrics = Instrumentation.metrics;
+        if (metrics == Metrics.NONE) return;
+        int capacity = line.getBufferSize(), queued = capacity - line.available();
+        metrics.lineFill(id, queued, capacity);
+        if (queued == 0 && transport.getRenderedFrames() > BLOCK_SIZE) metrics.underrun(id); // The block that was just mixed does not count
+    }
+    /**
+     * Get the id of the mixer, which identifies its output line in Metrics.
+     * @return The id.
+     * */
+    public int getId() {
+        return id;
+    }
+    /**
+     * Pre-render the samples if required, then open and start the line.
+     * @throws LineUnavailableException If the line cannot be opened.
+     * */
+    private void open() throws LineUnavailableException {
+        if (prerender) prerender();
+        line = AudioSystem.getSourceDataLine(format); // Set up the audio channel of this playback
+        line.open(format, out.length * LINE_BLOCKS);
+        transport.setLine(line);
+        line.start();
+    }
+    /**
+     * End the playback: complete the transport, close the line and stop the current PSGs.
+     * */
+    private void close() {
+        running = false;
+        try {
+            transport.finish(); // While the line is still open, so that the final position can be read
+            if (line != null) line.close();
+            for (int s = 0; s < sequences.size(); s++) {
+                if (positions[s] < sequences.get(s).size()) sequences.get(s).get(positions[s]).stop();
+            }
+        } finally {
+            closed.complete(null);
+        }
+    }
+    /**
+     * Mix the next block of every sequence.
+     * @param out The buffer the clipped mix is written to, in the output format.
+     * @param length The number of frames to mix. At most BLOCK_SIZE.
+     * @return The number of frames mixed. If it is less than length, every sequence has finished.
+     * The transport is advanced by that number.
+     * */
+    int mix(byte[] out, int length) {
+        applyEdits();
+        Arrays.fill(mix, 0, length, 0);
+        int mixed = 0, voices = 0;
+        for (int s = 0; s < sequences.size(); s++) {
+            List<PSG> sequence = sequences.get(s);
+            int filled = 0;
+            while (filled < length && positions[s] < sequence.size()) {
+                PSG psg = sequence.get(positions[s]);
+                if (!started[s]) { // The PSG becomes current: start it on the sample right after the previous one ended
+                    psg.start(offsets[s]);
+                    offsets[s] = 0; // Every later PSG starts at its beginning
+                    started[s] = true;
+                    Listener l = listener;
+                    if (l != null) { // Told when the sound is heard, not when it is mixed
+                        int track = s;
+                        String name = psg.getName();
+                        transport.at(transport.getRenderedFrames() + filled).thenRun(() -> l.started(track, name));
+                    }
+                }
+                int n = psg.render(block, 0, length - filled);
+                for (int i = 0; i < n; i++) mix[filled + i] += block[i];
+                filled += n;
+                if (filled < length) { // The PSG has finished, move on to the next one in the sequence
+                    psg.stop();
+                    positions[s]++;
+                    started[s] = false;
+                }
+            }
+            mixed = Math.max(mixed, filled);
+            if (filled > 0) voices++;
+        }
+        Metrics metrics = Instrumentation.metrics;
+        if (metrics != Metrics.NONE) metrics.mixed(id, voices, PlaybackScheduler.activeThreads() + ParallelRenderer.activeThreads());
+        convert(out, mixed);
+        transport.advance(mixed);
+        return mixed;
+    }
+    /**
+     * Clip the mix buffer and quantize it to the output format. Mono is copied to every channel.
+     * @param out The buffer to write to.
+     * @param frames The number of frames.
+     * */
+    private void convert(byte[] out, int frames) {
+        int bytes = format.getSampleSizeInBits() / 8, channels = format.getChannels();
+        boolean bigEndian = format.isBigEndian();
+        long max = (1L << (bytes * 8 - 1)) - 1;
+        for (int i = 0, pos = 0; i < frames; i++) {
+            double v = Math.max(Math.min(mix[i], 1), -1) * max; // Clip
+            if (dither) v += random() - random(); // Triangular noise of +-1 LSB
+            long q = Math.max(Math.min(Math.round(v), max), -max - 1);
+            for (int c = 0; c < channels; c++) {
+                for (int b = 0; b < bytes; b++) out[pos++] = (byte) (q >> 8 * (bigEndian ? bytes - 1 - b : b));
+            }
+        }
+    }
+    /**
+     * Get a uniformly distributed random number for dither. Cheaper than Math.random() and never shared between threads.
+     * @return A number in [0, 1).
+     * */
+    private double random() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 7;
+        seed ^= seed << 17;
+        return (seed >>> 11) * 0x1.0p-53;
+    }
+    /**
+     * @author Shreyas Raghunath
+     * Receives the sounds of a playback as they start. It is called on the thread that feeds the line,
+     * once the position of the playback reaches the sound, so it must return quickly.
+     * */
+    @FunctionalInterface
+    public interface Listener {
+        /**
+         * A sound started playing.
+         * @param sequence The index of the sequence.
+         * @param sound The name of the sound.
+         * */
+        void started(int sequence, String sound);
+    }
+}
@@ -0,0 +1,81 @@
+package audio;
+
+/**
+ * @author Shreyas Raghunath
+ * The Noise class is the noise source of the sequencer. Every value is a pure function of a
+ * seed and an index, so it never shares state between threads, never allocates, and renders
+ * the same noise every time: any range of a sample can be generated on its own, in any order,
+ * and two renders of a song are identical. The seed can be set with the audio.noise.seed
+ * system property.
+ *
+ * Besides white noise, it reproduces the 15-bit linear-feedback shift register of the NES
+ * noise channel. In its short mode the register repeats after 93 steps, which gives the
+ * metallic, pitched noise the chip is known for.
+ * */
+final class Noise {
+    /**
+     * The seed of all noise.
+     * */
+    private static volatile long seed = Long.getLong("audio.noise.seed", 0x5EED5EEDL);
+    /**
+     * The output bits of the NES shift register in its normal (32767 steps) and short (93 steps) mode.
+     * */
+    private static final boolean[] LONG = lfsr(1), SHORT = lfsr(6);
+
+    private Noise() {
+    }
+    /**
+     * Get a white noise value.
+     * @param seed The seed.
+     * @param index The index of the value.
+     * @return A uniformly distributed value in [0, 1).
+     * */
+    static double white(long seed, long index) {
+        long z = seed + index * 0x9E3779B97F4A7C15L; // SplitMix64
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return ((z ^ (z >>> 31)) >>> 11) * 0x1.0p-53;
+    }
+    /**
+     * Get a value of the NES noise channel.
+     * @param seed The seed. It picks where in the sequence the register starts.
+     * @param index The index of the step.
+     * @param shortMode Use the short 93-step sequence instead of the 32767-step one.
+     * @return 0 or 1.
+     * */
+    static double nes(long seed, long index, boolean shortMode) {
+        boolean[] bits = shortMode ? SHORT : LONG;
+        return bits[(int) Math.floorMod(index + seed, (long) bits.length)] ? 1 : 0;
+    }
+    /**
+     * Get the seed of all noise.
+     * @return The seed.
+     * */
+    static long getSeed() {
+        return seed;
+    }
+    /**
+     * Set the seed of all noise. Cached samples made with the old seed must be discarded by the caller.
+     * @param seed The seed.
+     * */
+    static void setSeed(long seed) {
+        Noise.seed = seed;
+    }
+    /**
+     * Run the NES shift register through one period.
+     * @param tap The bit XORed with bit 0 to form the feedback: 1 for the normal mode, 6 for the short mode.
+     * @return The output bit of every step of the period.
+     * */
+    private static boolean[] lfsr(int tap) {
+        int start = 1, state = start, period = 0;
+        boolean[] bits = new boolean[1 << 15];
+        do {
+            bits[period++] = (state & 1) == 0; // The channel is silent while bit 0 is set
+            int feedback = (state ^ (state >> tap)) & 1;
+            state = state >> 1 | feedback << 14;
+        } while (state != start && period < bits.length);
+        boolean[] result = new boolean[period];
+        System.arraycopy(bits, 0, result, 0, period);
+        return result;
+    }
+}
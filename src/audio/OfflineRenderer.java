@@ -0,0 +1,65 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @author Shreyas Raghunath
+ * The OfflineRenderer class renders sequences into a WAVE file as fast as the CPU allows.
+ * It uses the same Mixer as real-time playback, but writes the mixed blocks to a file
+ * instead of an audio line, so it never opens a line and runs on headless machines.
+ * */
+public final class OfflineRenderer {
+    private OfflineRenderer() {
+    }
+    /**
+     * Render sequences into a WAVE file in the default format.
+     * @param sequences The sequences to render.
+     * @param wav The file to write.
+     * @return The number of frames written.
+     * @throws IOException If the file cannot be written.
+     * */
+    public static long render(List<List<PSG>> sequences, File wav) throws IOException {
+        return render(sequences, wav, CachedPSG.FORMAT, false);
+    }
+    /**
+     * Render sequences into a WAVE file.
+     * @param sequences The sequences to render.
+     * @param wav The file to write.
+     * @param format The format of the file. Samples are always written little-endian, as WAVE files require.
+     * @param dither Add TPDF dither before quantizing.
+     * @return The number of frames written.
+     * @throws IOException If the file cannot be written.
+     * */
+    public static long render(List<List<PSG>> sequences, File wav, AudioFormat format, boolean dither) throws IOException {
+        return render(sequences, wav, format, dither, 0);
+    }
+    /**
+     * Render sequences into a WAVE file, from a frame to the end.
+     * @param sequences The sequences to render.
+     * @param wav The file to write.
+     * @param format The format of the file. Samples are always written little-endian, as WAVE files require.
+     * @param dither Add TPDF dither before quantizing.
+     * @param start The frame to start at.
+     * @return The number of frames written.
+     * @throws IOException If the file cannot be written.
+     * */
+    public static long render(List<List<PSG>> sequences, File wav, AudioFormat format, boolean dither, long start) throws IOException {
+        format = new AudioFormat(format.getSampleRate(), format.getSampleSizeInBits(), format.getChannels(), true, false);
+        Mixer mixer = new Mixer(sequences, format).setDither(dither).setStart(start);
+        mixer.prerender(); // Use every core to generate the samples, then mix them
+        byte[] block = new byte[Mixer.BLOCK_SIZE * format.getFrameSize()];
+        long frames = 0;
+        try (WavWriter out = new WavWriter(wav, format)) {
+            for (int n = mixer.mix(block, Mixer.BLOCK_SIZE); n > 0; n = mixer.mix(block, Mixer.BLOCK_SIZE)) {
+                out.write(block, 0, n * format.getFrameSize());
+                frames += n;
+            }
+        } finally {
+            mixer.getTransport().finish();
+        }
+        return frames;
+    }
+}
@@ -21,10 +21,33 @@ public interface PSG extends Runnable {
      * Start the PSG.
      * */
     void start();
+    /**
+     * Start the PSG at a frame, as if it had been playing since its first command.
+     * @param frame The frame, from the start of the PSG.
+     * */
+    void start(long frame);
     /**
      * Stop the PSG.
      * */
     void stop();
+    /**
+     * Render the next block of samples. The Mixer calls this once per block after the PSG has been started.
+     * @param buffer The buffer to write samples to, from -1 to 1 and already scaled by the loudness.
+     * @param offset The index of the first sample to write.
+     * @param length The maximum number of samples to write.
+     * @return The number of samples written. If it is less than length, the PSG has finished.
+     * */
+    int render(float[] buffer, int offset, int length);
+    /**
+     * Generate every sample the PSG plays the next time it is started ahead of time, so that playback does not have to.
+     * */
+    void prerender();
+    /**
+     * Create a PSG that plays the same sound with the same settings, but has its own playback state,
+     * so that it can be played at the same time as this one, e.g. by another Mixer.
+     * @return The copy.
+     * */
+    PSG copy();
     /**
      * Toggle percussion mode.
      * @param b Percussion mode (true = yes, false = no)
@@ -53,8 +76,8 @@ public interface PSG extends Runnable {
      * */
     boolean isPercussion();
     /**
-     * Set the playback speed of the PSG.
-     * @param d The new playback speed.
+     * Set the playback speed of the PSG. The notes are shortened or lengthened, their pitch does not change.
+     * @param d The new playback speed. Must be positive.
      * @return The PSG instance itself.
      * */
     PSG setPlaybackSpeed(double d);
@@ -73,6 +96,40 @@ public interface PSG extends Runnable {
      * @return The length of the command list.
      * */
     int getLength();
+    /**
+     * Set how many times the loop section (everything after "end opening") is played after the opening.
+     * The passes follow each other without a gap.
+     * @param loops The number of passes, at least 1.
+     * @return The PSG instance itself.
+     * */
+    PSG setLoops(int loops);
+    /**
+     * Get how many times the loop section is played after the opening.
+     * @return The number of passes.
+     * */
+    int getLoops();
+    /**
+     * Set the sample rate the PSG renders at.
+     * @param sampleRate The sample rate in Hz.
+     * @return The PSG instance itself.
+     * */
+    PSG setSampleRate(float sampleRate);
+    /**
+     * Get the sample rate the PSG renders at.
+     * @return The sample rate in Hz.
+     * */
+    float getSampleRate();
+    /**
+     * Get the number of samples this PSG renders the next time it is started, at its current playback speed and sample rate.
+     * @return The duration in frames.
+     * */
+    long getFrameLength();
+    /**
+     * Get the command that plays at a frame, counting the passes of the loop section.
+     * @param frame The frame, from the start of the PSG.
+     * @return The index of the command, or -1 if the frame is outside the PSG.
+     * */
+    int getCommandAt(long frame);
     /**
      * @author Shreyas Raghunath
      * The Waveform interface represents a waveform used to generate samples, such as square waves, triangle waves, etc.
@@ -97,14 +154,18 @@ public interface PSG extends Runnable {
         Waveform SAWTOOTH = x -> TWO_OVER_PI * Math.atan(Math.tan(x / 2));
         /**
          * Kick drum. Uses exponential decay to only sound the thump at the beginning and remove noise that might come after.
+         * It is silent at x = 0, where log(x) has no value.
          * */
-        Waveform KICK = x -> Math.sin(25 * Math.log(x)) / Math.exp(x / 175);
+        Waveform KICK = x -> x <= 0 ? 0 : Math.sin(25 * Math.log(x)) / Math.exp(x / 175);
         /**
          * Snare drum. Similar to the kick drum but mixes in white noise to make it sound more like a snare drum.
+         * The noise only depends on x, so the snare sounds the same every time.
          * */
         Waveform SNARE = x -> {
+            if (x <= 0) return 0; // log(x) has no value
             double base = Math.cos(3.5 * Math.pow(Math.log(x), 2));
-            for (byte i = 0; i < 4; i++) base += Math.random();
+            long seed = Noise.getSeed() ^ Double.doubleToLongBits(x);
+            for (byte i = 0; i < 4; i++) base += Noise.white(seed, i);
             return base / Math.exp(x / 175);
         };
         /**
@@ -113,54 +174,65 @@ public interface PSG extends Runnable {
          * @return The output of the waveform at the given x.
          * */
         double output(double x);
+        /**
+         * The output of the waveform at the given x and progress through the note. It is a pure function,
+         * so one waveform can be evaluated by any number of threads at once.
+         * @param x The input value.
+         * @param n How far through the note the sample is, from 0 to 1. Only dynamic waveforms depend on it.
+         * @return The output of the waveform.
+         * */
+        default double output(double x, double n) {
+            return output(x);
+        }
+        /**
+         * Evaluate the waveform for a block of samples at once.
+         * @param x The input values.
+         * @param n How far through the note each sample is, from 0 to 1.
+         * @param out The array the outputs are written to.
+         * @param length The number of samples.
+         * */
+        default void output(double[] x, double[] n, double[] out, int length) {
+            for (int k = 0; k < length; k++) out[k] = output(x[k], n[k]);
+        }
         /**
          * Combine different waveforms to make one waveform that contains all the sounds of the constituent waveforms.
          * @param waveforms The list of waveforms to be combined.
          * @return The output waveform.
          * */
         static Waveform combine(Waveform... waveforms) {
-            return x -> {
-                double sum = 0.0;
-                for (Waveform w : waveforms) sum += w.output(x);
-                return sum / waveforms.length;
-            };
+            return FusedWaveform.combine(waveforms); // Flattened into one weighted sum, nested combines and dissolves included
         }
         /**
-         * Create a waveform that involves one waveform dissolving into another waveform.
+         * Create a waveform that involves one waveform dissolving into another waveform over the note.
          * @param from The first waveform, which the new waveform will transition out of.
          * @param to The second waveform, which the new waveform will transition into.
          * @return The output waveform.
          * */
         static Waveform dissolve(Waveform from, Waveform to) {
-            return new DynamicWaveform() {
-                public double output(double x) {
-                    return (1 - n()) * from.output(x) + n() * to.output(x);
-                }
-            };
+            return FusedWaveform.dissolve(from, to);
         }
     }
     /**
      * @author Shreyas Raghunath
-     * A waveform that can change over time.
+     * A waveform that changes over the note. Its output depends on how far through the note the
+     * sample is, which is passed to output(x, n) instead of being kept in the waveform, so a
+     * dynamic waveform has no state and can be shared between PSGs and threads.
      * */
     abstract class DynamicWaveform implements Waveform {
         /**
-         * The parameter that determines how far along the change goes.
-         * */
-        private double n;
-        /**
-         * Return n itself.
-         * @return n.
+         * The output at the start of the note.
+         * @param x The input value.
+         * @return The output of the waveform at the given x and n = 0.
          * */
-        protected final double n() {
-            return n;
+        public final double output(double x) {
+            return output(x, 0);
         }
         /**
-         * Set n within CachedPSG.
-         * @param n The new value of n from 0 to 1.
+         * The output of the waveform at the given x and progress through the note.
+         * @param x The input value.
+         * @param n How far through the note the sample is, from 0 to 1.
+         * @return The output of the waveform.
          * */
-        public final void setN(double n) {
-            if (n >= 0.0 && n <= 1.0) this.n = n;
-        }
+        public abstract double output(double x, double n);
     }
 }
\ No newline at end of file
@@ -0,0 +1,86 @@
+package audio;
+
+import java.util.Collection;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * @author Shreyas Raghunath
+ * The ParallelRenderer class spreads sample generation over the cores of the machine using the
+ * common ForkJoinPool. A long sample is split into independent chunks that are rendered in
+ * parallel, which works because every generated value only depends on its index within the
+ * sample. Short samples are rendered directly on the calling thread, where forking would cost
+ * more than it saves.
+ * */
+final class ParallelRenderer {
+    /**
+     * The number of samples rendered by one task. Samples longer than 2 * CHUNK are split, so it
+     * must stay well below CachedPSG.MAX_CACHED_FRAMES, the longest sample that is rendered whole:
+     * with the defaults, every cached note longer than about 93 ms at 44.1 kHz is rendered in up
+     * to 8 parallel chunks. Can be set with the audio.render.chunk system property.
+     * */
+    static final int CHUNK = Math.max(256, Integer.getInteger("audio.render.chunk", 2048));
+    /**
+     * Renders a range of a sample.
+     * */
+    @FunctionalInterface
+    interface Range {
+        /**
+         * Render the samples in [from, to).
+         * @param from The index of the first sample.
+         * @param to The index after the last sample.
+         * */
+        void render(int from, int to);
+    }
+
+    private ParallelRenderer() {
+    }
+    /**
+     * Render a whole sample, in parallel chunks if it is long enough.
+     * @param length The number of samples.
+     * @param range Renders a range of the sample. Must be safe to call from several threads at once for disjoint ranges.
+     * */
+    static void render(int length, Range range) {
+        if (length <= 2 * CHUNK) {
+            range.render(0, length);
+        } else {
+            ForkJoinPool.commonPool().invoke(new Chunk(range, 0, length));
+        }
+    }
+    /**
+     * Run independent tasks in parallel and wait for all of them.
+     * @param tasks The tasks.
+     * */
+    static void runAll(Collection<? extends Runnable> tasks) {
+        tasks.parallelStream().forEach(Runnable::run);
+    }
+    /**
+     * Get the number of threads of the common pool that are rendering.
+     * @return The number of busy threads.
+     * */
+    static int activeThreads() {
+        return ForkJoinPool.commonPool().getActiveThreadCount();
+    }
+    /**
+     * A range of a sample that is split in half until it is at most CHUNK samples long.
+     * */
+    @SuppressWarnings("serial")
+    private static final class Chunk extends RecursiveAction {
+        private final Range range;
+        private final int from, to;
+
+        Chunk(Range range, int from, int to) {
+            this.range = range;
+            this.from = from;
+            this.to = to;
+        }
+        protected void compute() {
+            if (to - from <= CHUNK) {
+                range.render(from, to);
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll(new Chunk(range, from, mid), new Chunk(range, mid, to));
+            }
+        }
+    }
+}
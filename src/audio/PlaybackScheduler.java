@@ -0,0 +1,104 @@
+package audio;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Shreyas Raghunath
+ * The PlaybackScheduler class owns the threads that feed every playback in the JVM. It is a
+ * small pool of long-lived daemon threads: a playback never blocks one of them, it writes
+ * what the line can take without blocking and then asks to be run again a few milliseconds
+ * later. So any number of concurrent playbacks share the same bounded set of threads, and
+ * pressing play again reuses them instead of creating new ones. The number of threads can be
+ * set with the audio.playback.threads system property. The slow work before a playback starts,
+ * pre-rendering its samples and opening its line, runs on a second small pool (see prepare()),
+ * so starting a playback never holds up the ones that are already playing, and starting many
+ * at once queues them instead of creating a thread for each.
+ * */
+final class PlaybackScheduler {
+    /**
+     * The number of threads.
+     * */
+    static final int THREADS = Math.max(1, Integer.getInteger("audio.playback.threads", Math.min(4, Runtime.getRuntime().availableProcessors())));
+    /**
+     * The number of threads that prepare playbacks. Can be set with the audio.prepare.threads system property.
+     * */
+    static final int PREPARE_THREADS = Math.max(1, Integer.getInteger("audio.prepare.threads", Runtime.getRuntime().availableProcessors() / 2));
+    /**
+     * How long a playback waits before it is run again, in milliseconds. Much shorter than the line buffer, so it never runs dry.
+     * */
+    static final long POLL_MS = 5;
+    /**
+     * The number of threads created so far, used to name them.
+     * */
+    private static final AtomicInteger created = new AtomicInteger();
+    /**
+     * Whether the current thread is one of the threads of the scheduler.
+     * */
+    private static final ThreadLocal<Boolean> schedulerThread = ThreadLocal.withInitial(() -> false);
+    /**
+     * The executor all playbacks run on.
+     * */
+    private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREADS, r -> {
+        Thread t = new Thread(() -> {
+            schedulerThread.set(true);
+            r.run();
+        }, "audio-playback-" + created.incrementAndGet());
+        t.setDaemon(true); // Playback must not keep the JVM alive on its own
+        return t;
+    });
+
+    /**
+     * The executor that prepares playbacks, with at most PREPARE_THREADS threads. Further playbacks
+     * wait in its queue. Its threads end when they have been idle for a minute.
+     * */
+    private static final ThreadPoolExecutor preparer = new ThreadPoolExecutor(PREPARE_THREADS, PREPARE_THREADS, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(), r -> {
+        Thread t = new Thread(r, "audio-prepare-" + created.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+    static {
+        preparer.allowCoreThreadTimeOut(true);
+    }
+
+    private PlaybackScheduler() {
+    }
+    /**
+     * Run a step of a playback as soon as possible.
+     * @param step The step.
+     * */
+    static void submit(Runnable step) {
+        executor.execute(step);
+    }
+    /**
+     * Prepare a playback away from the playback threads, e.g. pre-render its samples and open its line.
+     * @param task The task. It submits the first step of the playback when it is done.
+     * */
+    static void prepare(Runnable task) {
+        preparer.execute(task);
+    }
+    /**
+     * Run the next step of a playback after POLL_MS.
+     * @param step The step.
+     * */
+    static void reschedule(Runnable step) {
+        executor.schedule(step, POLL_MS, TimeUnit.MILLISECONDS);
+    }
+    /**
+     * Determine if the current thread is one of the threads of the scheduler, which must never wait for a playback.
+     * @return If it is, return true, false otherwise.
+     * */
+    static boolean isSchedulerThread() {
+        return schedulerThread.get();
+    }
+    /**
+     * Get the number of threads that are running a playback step.
+     * @return The number of busy threads.
+     * */
+    static int activeThreads() {
+        return executor.getActiveCount();
+    }
+}
@@ -0,0 +1,290 @@
+package audio;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Shreyas Raghunath
+ * The Program class is a sound file compiled into a compact struct-of-arrays form.
+ * The text is parsed exactly once: every command becomes an opcode plus its frequency,
+ * amplitude, duration, flags and argument, stored in primitive arrays indexed by the
+ * command's position. Every distinct command is also given a global id, so a cached
+ * sample can be looked up with a single long instead of hashing and comparing strings.
+ * Programs are immutable once compiled, so one program can be shared by every PSG that
+ * plays the same sound. Each PSG only keeps its own position within it.
+ * */
+public final class Program {
+    /**
+     * Play a tone. The argument is the hexadecimal value of the first character, used to pick a percussion waveform.
+     * */
+    static final byte TONE = 0;
+    /**
+     * Play white noise, or NES short-mode noise if the SHORT flag is set. The argument is the stepdown.
+     * */
+    static final byte NOISE = 1;
+    /**
+     * Change the waveform. The argument is the index of the new waveform.
+     * */
+    static final byte WAVEFORM = 2;
+    /**
+     * Marks the end of the opening (the intro section), which is only played once each time the
+     * sound is started. The commands after it form the loop section.
+     * */
+    static final byte END_OPENING = 3;
+    /**
+     * The command has a flag column: a fourth or later column that is not a key=value parameter. Tones only read ATTENUATE and VIBRATO if it does, white noise is attenuated if it does.
+     * */
+    static final byte EXTENDED = 1;
+    /**
+     * Attenuate the tone over time (the flag column contains an a).
+     * */
+    static final byte ATTENUATE = 2;
+    /**
+     * Add vibrato to the tone (the flag column contains a v).
+     * */
+    static final byte VIBRATO = 4;
+    /**
+     * Use the short mode of the NES noise channel instead of white noise (the first column starts with ws).
+     * */
+    static final byte SHORT = 8;
+    /**
+     * The names of the optional key=value parameters of a tone or noise command, which may appear
+     * from the fourth column on, in any order: the ADSR envelope (attack, decay and release in milliseconds, sustain
+     * level from 0 to 1), the vibrato (vrate in Hz, vdepth in radians) and the tremolo (trate in Hz,
+     * tdepth from 0 to 1). The index of a name is its index in the parameter array of a command.
+     * */
+    static final String[] PARAMETERS = {"attack", "decay", "sustain", "release", "vrate", "vdepth", "trate", "tdepth"};
+    static final int ATTACK = 0, DECAY = 1, SUSTAIN = 2, RELEASE = 3, VIBRATO_RATE = 4, VIBRATO_DEPTH = 5, TREMOLO_RATE = 6, TREMOLO_DEPTH = 7;
+    /**
+     * A program without commands.
+     * */
+    static final Program EMPTY = new Program(0, -1);
+    /**
+     * The global ids of all distinct commands seen so far.
+     * */
+    private static final Map<Signature, Integer> registry = new ConcurrentHashMap<>();
+    /**
+     * The id given to the next distinct command. Id 0 is never used.
+     * */
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    /**
+     * The opcode of each command.
+     * */
+    final byte[] ops;
+    /**
+     * The flags of each command.
+     * */
+    final byte[] flags;
+    /**
+     * The argument of each command. See the opcodes.
+     * */
+    final int[] args;
+    /**
+     * The global id of each command. Commands with the same parameters share an id.
+     * */
+    final int[] ids;
+    /**
+     * The frequency in Hz (NaN if the first column is not a number), amplitude and duration in milliseconds of each command.
+     * */
+    final double[] freqs, amps, ms;
+    /**
+     * The frequencies of each chord, a tone whose first column lists several frequencies joined by +
+     * (e.g. 261.63+329.63+392), or null for a single tone. The first one is also in freqs.
+     * */
+    final double[][] chords;
+    /**
+     * The key=value parameters of each command, indexed like PARAMETERS with NaN for the ones that are not given,
+     * or null if the command has none.
+     * */
+    final double[][] params;
+    /**
+     * The index of the END_OPENING command, or -1 if there is no opening.
+     * */
+    final int opening;
+    /**
+     * @param size The number of commands.
+     * @param opening The index of the END_OPENING command, or -1 if there is no opening.
+     * */
+    private Program(int size, int opening) {
+        ops = new byte[size];
+        flags = new byte[size];
+        args = new int[size];
+        ids = new int[size];
+        freqs = new double[size];
+        amps = new double[size];
+        ms = new double[size];
+        params = new double[size][];
+        chords = new double[size][];
+        this.opening = opening;
+    }
+    /**
+     * Compile a sound file.
+     * @param file The input stream from which the command data is read. It is closed afterwards.
+     * @return The compiled program.
+     * @throws IOException If the stream cannot be read or a command is malformed.
+     * */
+    public static Program compile(InputStream file) throws IOException {
+        String[][] lines = new String[64][];
+        int size = 0, opening = -1, lineNumber = 0;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(Objects.requireNonNull(file)))) { // Read the commands from the input stream
+            for (String l = r.readLine(); l != null; l = r.readLine()) {
+                lineNumber++;
+                int commentIndex = l.indexOf("//");
+                if (commentIndex != -1) l = l.substring(0, commentIndex); // Exclude comments
+                l = l.toLowerCase().trim();
+                if (l.isEmpty()) continue; // Exclude empty lines
+                String[] command = l.split("\\s+");
+                if (command.length < (command[0].charAt(0) == 'c' ? 2 : command[0].equals("end") ? 1 : 3)) {
+                    throw new IOException("Line " + lineNumber + ": too few columns: " + l);
+                }
+                if (command[0].equals("end")) opening = size;
+                if (size == lines.length) lines = Arrays.copyOf(lines, size * 2);
+                lines[size++] = command;
+            }
+        }
+        Program p = new Program(size, opening);
+        for (int i = 0; i < size; i++) {
+            try {
+                p.decode(i, lines[i]);
+            } catch (IllegalArgumentException e) { // Includes NumberFormatException
+                throw new IOException("Command " + i + ": " + String.join(" ", lines[i]), e);
+            }
+        }
+        return p;
+    }
+    /**
+     * Decode a single command into the arrays.
+     * @param i The index of the command.
+     * @param l The split line.
+     * */
+    private void decode(int i, String[] l) {
+        if (l[0].charAt(0) == 'c') { // A = 10, B = 11, C = 12, D = 13, E = 14, F = 15
+            ops[i] = WAVEFORM;
+            args[i] = parseSingleCharHex(l[1].charAt(0));
+            return;
+        } else if (l[0].equals("end")) {
+            ops[i] = END_OPENING;
+            return;
+        }
+        amps[i] = Double.parseDouble(l[1]);
+        ms[i] = Double.parseDouble(l[2]);
+        String flagColumn = null;
+        for (int j = 3; j < l.length; j++) {
+            int equals = l[j].indexOf('=');
+            if (equals == -1) {
+                flagColumn = l[j];
+                continue;
+            }
+            int index = Arrays.asList(PARAMETERS).indexOf(l[j].substring(0, equals));
+            if (index == -1) throw new IllegalArgumentException("Unknown parameter: " + l[j]);
+            if (params[i] == null) {
+                params[i] = new double[PARAMETERS.length];
+                Arrays.fill(params[i], Double.NaN);
+            }
+            params[i][index] = Double.parseDouble(l[j].substring(equals + 1));
+        }
+        if (flagColumn != null) flags[i] = EXTENDED;
+        if (l[0].charAt(0) == 'w') {
+            ops[i] = NOISE;
+            String stepDown = l[0].substring(1);
+            if (stepDown.startsWith("s")) { // ws[stepdown] is NES short-mode noise
+                flags[i] |= SHORT;
+                stepDown = stepDown.substring(1);
+            }
+            args[i] = stepDown.isEmpty() ? 1 : Integer.parseInt(stepDown);
+            freqs[i] = Double.NaN;
+        } else {
+            ops[i] = TONE;
+            args[i] = parseSingleCharHex(l[0].charAt(0));
+            if (l[0].indexOf('+') != -1) { // A chord: every frequency is a voice
+                String[] voices = l[0].split("\\+");
+                chords[i] = new double[voices.length];
+                for (int v = 0; v < voices.length; v++) chords[i][v] = Double.parseDouble(voices[v]);
+                freqs[i] = chords[i][0];
+            } else {
+                freqs[i] = parseFrequency(l[0]);
+            }
+            if (flagColumn != null && flagColumn.contains("a")) flags[i] |= ATTENUATE;
+            if (flagColumn != null && flagColumn.contains("v")) flags[i] |= VIBRATO;
+        }
+        ids[i] = registry.computeIfAbsent(new Signature(ops[i], ops[i] == NOISE ? args[i] : 0, freqs[i], amps[i], ms[i], flags[i], params[i], chords[i]), s -> nextId.getAndIncrement());
+    }
+    /**
+     * Parse the frequency of a tone. In percussion mode the first column does not have to be a number.
+     * @param s The first column.
+     * @return The frequency, or NaN if it is not a number.
+     * */
+    private static double parseFrequency(String s) {
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+    /**
+     * Parse a single character using radix 16 (hexadecimal).
+     * @param c the character to be parsed.
+     * @return the hexadecimal value represented by the character.
+     * */
+    private static byte parseSingleCharHex(char c) {
+        if (c >= '0' && c <= '9') {
+            return (byte) (c - '0');
+        } else if (c >= 'A' && c <= 'F') {
+            return (byte) (c - ('A' - 10));
+        } else if (c >= 'a' && c <= 'f') {
+            return (byte) (c - ('a' - 10));
+        }
+        return 0;
+    }
+    /**
+     * Get the index of the first command of the loop section.
+     * @return The index of the command after END_OPENING, or 0 if there is no opening.
+     * */
+    int loopStart() {
+        return opening + 1;
+    }
+    /**
+     * Get the number of commands.
+     * @return The number of commands, including waveform changes and the end of the opening.
+     * */
+    public int size() {
+        return ops.length;
+    }
+    /**
+     * The parameters that make a command distinct. Only used while compiling.
+     * @author Shreyas Raghunath
+     * */
+    private static final class Signature {
+        final byte op, flags;
+        final int arg;
+        final double freq, amp, ms;
+        final double[] params, chord;
+
+        Signature(byte op, int arg, double freq, double amp, double ms, byte flags, double[] params, double[] chord) {
+            this.op = op;
+            this.arg = arg;
+            this.freq = freq;
+            this.amp = amp;
+            this.ms = ms;
+            this.flags = flags;
+            this.params = params;
+            this.chord = chord;
+        }
+        public int hashCode() {
+            return Objects.hash(op, arg, freq, amp, ms, flags) * 961 + Arrays.hashCode(params) * 31 + Arrays.hashCode(chord);
+        }
+        public boolean equals(Object o) {
+            if (!(o instanceof Signature)) return false;
+            Signature s = (Signature) o;
+            return op == s.op && arg == s.arg && flags == s.flags && Double.compare(freq, s.freq) == 0
+                    && Double.compare(amp, s.amp) == 0 && Double.compare(ms, s.ms) == 0 && Arrays.equals(params, s.params) && Arrays.equals(chord, s.chord);
+        }
+    }
+}
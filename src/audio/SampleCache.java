@@ -0,0 +1,176 @@
+package audio;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * @author Shreyas Raghunath
+ * The SampleCache class is a thread-safe cache for generated samples with a budget in bytes.
+ * When the budget is exceeded, the least recently used samples are evicted first.
+ * Samples are generated outside of the lock, and a sample that is requested by several threads
+ * at once is only generated once: the other threads wait for the first one to finish.
+ * @param <K> The key type.
+ * @param <V> The sample type.
+ * */
+final class SampleCache<K, V> {
+    /**
+     * The budget in bytes.
+     * */
+    private final long capacity;
+    /**
+     * Returns the size of a sample in bytes.
+     * */
+    private final ToIntFunction<? super V> weigher;
+    /**
+     * The entries in access order, so the eldest entry is the least recently used one.
+     * Guarded by itself.
+     * */
+    private final LinkedHashMap<K, Entry<V>> map = new LinkedHashMap<>(256, 0.75f, true);
+    /**
+     * The total size of all completed entries in bytes. Guarded by map.
+     * */
+    private long bytes;
+    /**
+     * Statistics.
+     * */
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+    /**
+     * @param capacity The budget in bytes.
+     * @param weigher Returns the size of a sample in bytes.
+     * */
+    SampleCache(long capacity, ToIntFunction<? super V> weigher) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+    }
+    /**
+     * Get the sample for a key, generating it if it is not cached yet.
+     * @param key The key.
+     * @param generator Generates the sample if it is missing.
+     * @return The sample.
+     * */
+    V get(K key, Function<? super K, ? extends V> generator) {
+        Entry<V> e;
+        boolean owner = false;
+        synchronized (map) {
+            e = map.get(key);
+            if (e == null) {
+                map.put(key, e = new Entry<>());
+                owner = true;
+            }
+        }
+        if (!owner) { // The sample is cached or being generated by another thread: wait for it
+            hits.increment();
+            Instrumentation.metrics.cacheHit();
+            return e.value.join();
+        }
+        misses.increment();
+        Instrumentation.metrics.cacheMiss();
+        V v;
+        try {
+            v = generator.apply(key);
+        } catch (RuntimeException | Error ex) {
+            synchronized (map) {
+                map.remove(key, e);
+            }
+            e.value.completeExceptionally(ex);
+            throw ex;
+        }
+        e.value.complete(v);
+        long size;
+        synchronized (map) {
+            e.weight = weigher.applyAsInt(v);
+            if (map.get(key) == e) { // Still cached (it may have been cleared while it was generated)
+                bytes += e.weight;
+                evict(e);
+            }
+            size = bytes;
+        }
+        Instrumentation.metrics.cacheSize(size, capacity);
+        return v;
+    }
+    /**
+     * Evict the least recently used entries until the cache fits its budget again. Called with the lock held.
+     * @param keep An entry that must not be evicted.
+     * */
+    private void evict(Entry<V> keep) {
+        for (Iterator<Entry<V>> it = map.values().iterator(); bytes > capacity && it.hasNext();) {
+            Entry<V> e = it.next();
+            if (e == keep || e.weight == Entry.PENDING) continue;
+            it.remove();
+            bytes -= e.weight;
+            evictions.increment();
+            Instrumentation.metrics.cacheEvicted(e.weight);
+        }
+    }
+    /**
+     * Remove every sample from the cache.
+     * */
+    void clear() {
+        synchronized (map) {
+            map.clear();
+            bytes = 0;
+        }
+        Instrumentation.metrics.cacheSize(0, capacity);
+    }
+    /**
+     * @return The number of cached samples.
+     * */
+    int size() {
+        synchronized (map) {
+            return map.size();
+        }
+    }
+    /**
+     * @return The total size of the cached samples in bytes.
+     * */
+    long getBytes() {
+        synchronized (map) {
+            return bytes;
+        }
+    }
+    /**
+     * @return The budget in bytes.
+     * */
+    long getCapacity() {
+        return capacity;
+    }
+    /**
+     * @return The number of requests that were served from the cache.
+     * */
+    long getHits() {
+        return hits.sum();
+    }
+    /**
+     * @return The number of requests that had to generate a sample.
+     * */
+    long getMisses() {
+        return misses.sum();
+    }
+    /**
+     * @return The number of samples that were evicted to stay within the budget.
+     * */
+    long getEvictions() {
+        return evictions.sum();
+    }
+    @Override
+    public String toString() {
+        return String.format("SampleCache[%d samples, %d/%d bytes, %d hits, %d misses, %d evictions]",
+                size(), getBytes(), capacity, getHits(), getMisses(), getEvictions());
+    }
+    /**
+     * A cache entry. The value completes once the sample has been generated.
+     * @param <V> The sample type.
+     * */
+    private static final class Entry<V> {
+        /**
+         * The weight of an entry whose sample is still being generated.
+         * */
+        static final int PENDING = -1;
+        final CompletableFuture<V> value = new CompletableFuture<>();
+        int weight = PENDING;
+    }
+}
@@ -0,0 +1,95 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Shreyas Raghunath
+ * The SequencerCli class is the command-line entry point of the sequencer. It drives the
+ * Engine without creating any window, so it never loads the Swing/AWT classes.
+ *
+ * Usage:
+ *   java audio.SequencerCli play &lt;track&gt; [options]
+ *   java audio.SequencerCli render &lt;track&gt; &lt;output.wav&gt; [options]
+ *   java audio.SequencerCli duration &lt;track&gt; [options]
+ * Options:
+ *   --rate=&lt;Hz&gt;     sample rate, e.g. 22050, 44100 (default) or 48000
+ *   --bits=&lt;n&gt;      bits per sample: 8 (default), 16, 24 or 32
+ *   --stereo        two channels instead of one
+ *   --dither        add TPDF dither when quantizing
+ *   --start=&lt;s&gt;     play or render from a time in seconds instead of from the beginning
+ *   --metrics       print synthesis, cache and output line metrics when the command has finished
+ * */
+public final class SequencerCli {
+    private SequencerCli() {
+    }
+    /**
+     * Run a command.
+     * @param args The command and its arguments.
+     * */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (System.getProperty("java.awt.headless") == null) System.setProperty("java.awt.headless", "true");
+        List<String> positional = new ArrayList<>();
+        float rate = CachedPSG.DEFAULT_SAMPLE_RATE;
+        int bits = 8, channels = 1;
+        boolean dither = false;
+        double startSeconds = 0;
+        MetricsRecorder metrics = null;
+        try {
+            for (String arg : args) {
+                if (arg.startsWith("--rate=")) rate = Float.parseFloat(arg.substring(7));
+                else if (arg.startsWith("--bits=")) bits = Integer.parseInt(arg.substring(7));
+                else if (arg.equals("--stereo")) channels = 2;
+                else if (arg.equals("--dither")) dither = true;
+                else if (arg.startsWith("--start=")) startSeconds = Double.parseDouble(arg.substring(8));
+                else if (arg.equals("--metrics")) metrics = new MetricsRecorder();
+                else if (arg.startsWith("--")) throw new IllegalArgumentException("Unknown option: " + arg);
+                else positional.add(arg);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            positional.clear();
+        }
+        args = positional.toArray(new String[0]);
+        if (args.length < 2 || !(args[0].equals("play") || args[0].equals("render") || args[0].equals("duration"))
+                || args[0].equals("render") != (args.length == 3)) {
+            System.err.println("usage: java audio.SequencerCli play <track> [options]");
+            System.err.println("       java audio.SequencerCli render <track> <output.wav> [options]");
+            System.err.println("       java audio.SequencerCli duration <track> [options]");
+            System.err.println("options: --rate=<Hz> --bits=<8|16|24|32> --stereo --dither --start=<seconds> --metrics");
+            System.exit(2);
+        }
+        if (metrics != null) Metrics.install(metrics);
+        Engine engine = new Engine();
+        try {
+            engine.setFormat(new AudioFormat(rate, bits, channels, true, false)).setDither(dither);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        engine.loadTrack(new File(args[1]));
+        long startFrame = Math.round(startSeconds * engine.getSampleRate());
+        double seconds = Math.max(0, engine.getDuration() - startFrame) / (double) engine.getSampleRate();
+        switch (args[0]) {
+            case "play":
+                System.out.printf("playing %s (%.1f s)%n", args[1], seconds);
+                engine.setListener((sequence, sound) -> System.out.println("playing " + sound + " from track " + sequence));
+                engine.play(startFrame);
+                engine.awaitPlayback();
+                break;
+            case "render":
+                long start = System.nanoTime();
+                engine.render(new File(args[2]), startFrame);
+                double elapsed = (System.nanoTime() - start) / 1e9;
+                System.out.printf("rendered %.1f s of audio to %s in %.2f s (%.0fx real time)%n", seconds, args[2], elapsed, seconds / elapsed);
+                break;
+            case "duration":
+                System.out.printf("%.3f s (%d frames)%n", engine.getDuration() / (double) engine.getSampleRate(), engine.getDuration());
+                break;
+        }
+        if (metrics != null) System.out.println(metrics);
+    }
+}
@@ -29,6 +29,8 @@ public class SequencerPanel extends JPanel implements ActionListener
     static List<List<BlockPanel>> blocks;
     // `panelSelected` defines which panel is highlighted, to add sounds to
     static int panelSelected;
+    // width of one second of sound, in pixels
+    static final int PIXELS_PER_SECOND = 10;
     
     /**
      * @function constructor
@@ -108,6 +110,19 @@ public class SequencerPanel extends JPanel implements ActionListener
     	repaint();
     }
     
+    /**
+     * @function blockWidth
+     * @param sound, the sound to be displayed
+     * @return width of the sound's block, proportional to its duration
+     * 
+     * duration is known from the sound's compiled commands, nothing is rendered
+     */
+    public static int blockWidth (PSG sound)
+    {
+    	double seconds = sound.getFrameLength() / (double) sound.getSampleRate();
+    	return Math.max(1, (int) Math.round(seconds * PIXELS_PER_SECOND));
+    }
+    
     /**
      * @function actionPerformed
      * @param e
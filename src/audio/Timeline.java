@@ -0,0 +1,87 @@
+package audio;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @author Shreyas Raghunath
+ * The Timeline class is an index of a sequence by time. It keeps the frame at which each sound
+ * of the sequence starts, so the length of the sequence is known without rendering anything, and
+ * finding what plays at a frame or where a sound starts is a binary search. It is a snapshot: the
+ * Engine builds a new one whenever the sequence, the playback speed or the sample rate changes.
+ * */
+public final class Timeline {
+    /**
+     * The sounds of the sequence.
+     * */
+    private final List<PSG> sounds;
+    /**
+     * The frame at which each sound starts, with the length of the sequence at the end.
+     * */
+    private final long[] starts;
+
+    /**
+     * @param sequence The sounds of the sequence, in order.
+     * */
+    Timeline(List<PSG> sequence) {
+        sounds = Collections.unmodifiableList(new ArrayList<>(sequence));
+        starts = new long[sounds.size() + 1];
+        for (int i = 0; i < sounds.size(); i++) starts[i + 1] = starts[i] + sounds.get(i).getFrameLength();
+    }
+    /**
+     * Get the length of the sequence.
+     * @return The length in frames.
+     * */
+    public long getLength() {
+        return starts[starts.length - 1];
+    }
+    /**
+     * Get the number of sounds in the sequence.
+     * @return The number of sounds.
+     * */
+    public int size() {
+        return sounds.size();
+    }
+    /**
+     * Get a sound of the sequence.
+     * @param index The index of the sound.
+     * @return The sound.
+     * */
+    public PSG getSound(int index) {
+        return sounds.get(index);
+    }
+    /**
+     * Get the frame at which a sound starts.
+     * @param index The index of the sound, or size() for the end of the sequence.
+     * @return The frame.
+     * */
+    public long getStart(int index) {
+        return starts[index];
+    }
+    /**
+     * Get the sound that plays at a frame. Sounds that take no time are never returned.
+     * @param frame The frame, from the start of the sequence.
+     * @return The index of the sound, or -1 if the frame is outside the sequence.
+     * */
+    public int indexAt(long frame) {
+        if (frame < 0 || frame >= getLength()) return -1;
+        int lo = 0, hi = sounds.size() - 1; // Find the last sound that starts at or before the frame
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (starts[mid] <= frame) lo = mid;
+            else hi = mid - 1;
+        }
+        return lo;
+    }
+    /**
+     * Get the sound and the command that play at a frame.
+     * @param frame The frame, from the start of the sequence.
+     * @return The index of the sound and the index of the command within it, or null if the frame is outside the sequence.
+     * */
+    public int[] at(long frame) {
+        int index = indexAt(frame);
+        if (index < 0) return null;
+        return new int[] {index, sounds.get(index).getCommandAt(frame - starts[index])};
+    }
+}
@@ -0,0 +1,148 @@
+package audio;
+
+import javax.sound.sampled.DataLine;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @author Shreyas Raghunath
+ * The Transport class is the clock of a playback. Its position is the number of frames that
+ * have actually been played, taken from the output line's getLongFramePosition(), or the
+ * number of frames rendered when there is no line. Actions can be scheduled at any frame:
+ * each one is a future that completes once the position reaches that frame, so nothing has
+ * to poll the PSGs to find out what is playing. The Mixer owns one transport per playback.
+ * */
+public final class Transport {
+    /**
+     * The line the frames are played through, or null when rendering offline.
+     * */
+    private volatile DataLine line;
+    /**
+     * The number of frames handed to the line (or rendered) so far.
+     * */
+    private volatile long rendered;
+    /**
+     * The last known position, kept once the line has been closed.
+     * */
+    private volatile long position;
+    /**
+     * The scheduled events, the earliest first.
+     * */
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    /**
+     * The number of events scheduled so far. Events at the same frame fire in the order they were scheduled.
+     * */
+    private long scheduled;
+    /**
+     * Completes with the final position once the playback has ended, whether it finished or was stopped.
+     * */
+    private final CompletableFuture<Long> completion = new CompletableFuture<>();
+
+    Transport() {
+    }
+    /**
+     * Get the position of the playback.
+     * @return The number of frames that have been played so far.
+     * */
+    public long getPosition() {
+        DataLine l = line;
+        if (l != null && l.isOpen()) position = Math.min(l.getLongFramePosition(), rendered);
+        else if (l == null) position = rendered;
+        return position;
+    }
+    /**
+     * Get the number of frames that have been rendered so far. It runs ahead of the position by
+     * the frames that are still buffered in the line.
+     * @return The number of frames.
+     * */
+    public long getRenderedFrames() {
+        return rendered;
+    }
+    /**
+     * Schedule an action at a frame.
+     * @param frame The frame.
+     * @return A future that completes with the position once the playback reaches the frame. It is
+     * completed on the thread that feeds the line, so dependent actions should be short. It is cancelled if the
+     * playback ends before the frame.
+     * */
+    public CompletableFuture<Long> at(long frame) {
+        Event e;
+        synchronized (events) {
+            e = new Event(frame, scheduled++);
+            if (!completion.isDone()) {
+                events.add(e);
+                return e.future;
+            }
+        }
+        e.future.cancel(false);
+        return e.future;
+    }
+    /**
+     * Get the completion of the playback.
+     * @return A future that completes with the final position once the playback has finished or been stopped.
+     * */
+    public CompletableFuture<Long> getCompletion() {
+        return completion;
+    }
+    /**
+     * Set the line the frames are played through.
+     * @param line The line, or null when rendering offline.
+     * */
+    void setLine(DataLine line) {
+        this.line = line;
+    }
+    /**
+     * Count frames that have been rendered and fire the events the position has reached.
+     * @param frames The number of frames.
+     * */
+    void advance(int frames) {
+        rendered += frames;
+        fire(getPosition());
+    }
+    /**
+     * End the playback: fire the events up to the final position and cancel the rest.
+     * */
+    void finish() {
+        long end = getPosition();
+        fire(end);
+        List<Event> cancelled;
+        synchronized (events) {
+            cancelled = new ArrayList<>(events);
+            events.clear();
+            completion.complete(end); // No events can be added from now on
+        }
+        for (Event e : cancelled) e.future.cancel(false);
+    }
+    /**
+     * Complete the events that are due.
+     * @param position The current position.
+     * */
+    private void fire(long position) {
+        while (true) {
+            Event e;
+            synchronized (events) {
+                if (events.isEmpty() || events.peek().frame > position) return;
+                e = events.poll();
+            }
+            e.future.complete(position); // Outside the lock, since dependent actions run here
+        }
+    }
+    /**
+     * A future scheduled at a frame.
+     * */
+    private static final class Event implements Comparable<Event> {
+        final long frame, order;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Event(long frame, long order) {
+            this.frame = frame;
+            this.order = order;
+        }
+        public int compareTo(Event e) {
+            int c = Long.compare(frame, e.frame);
+            return c != 0 ? c : Long.compare(order, e.order);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package audio;
+
+import javax.sound.sampled.AudioFormat;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * @author Shreyas Raghunath
+ * The WavWriter class streams PCM samples into a RIFF/WAVE file. The header is written with
+ * placeholder sizes first and patched when the writer is closed, so the length of the audio
+ * does not have to be known in advance and nothing is buffered in memory.
+ * */
+final class WavWriter implements Closeable {
+    /**
+     * The size of the header in bytes.
+     * */
+    private static final int HEADER_SIZE = 44;
+    /**
+     * The file being written.
+     * */
+    private final File file;
+    /**
+     * The format of the samples passed to write().
+     * */
+    private final AudioFormat format;
+    /**
+     * The buffered output.
+     * */
+    private final OutputStream out;
+    /**
+     * Used to convert signed 8-bit samples, since 8-bit WAVE files are unsigned.
+     * */
+    private final byte[] scratch = new byte[4096];
+    /**
+     * The number of sample bytes written.
+     * */
+    private long dataSize;
+    /**
+     * @param file The file to write.
+     * @param format The format of the samples. Must be 8-bit, or signed little-endian PCM.
+     * @throws IOException If the file cannot be written.
+     * */
+    WavWriter(File file, AudioFormat format) throws IOException {
+        if (format.getSampleSizeInBits() > 8 && (format.isBigEndian() || format.getEncoding() != AudioFormat.Encoding.PCM_SIGNED)) {
+            throw new IllegalArgumentException("WAVE files need signed little-endian samples: " + format);
+        }
+        this.file = file;
+        this.format = format;
+        out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        out.write(header(0));
+    }
+    /**
+     * Write samples.
+     * @param b The samples, in the format given to the constructor.
+     * @param off The index of the first byte to write.
+     * @param len The number of bytes to write.
+     * @throws IOException If the file cannot be written.
+     * */
+    void write(byte[] b, int off, int len) throws IOException {
+        if (format.getSampleSizeInBits() == 8 && format.getEncoding() == AudioFormat.Encoding.PCM_SIGNED) {
+            for (int done = 0; done < len;) { // Flip the sign bit to make the samples unsigned
+                int n = Math.min(scratch.length, len - done);
+                for (int i = 0; i < n; i++) scratch[i] = (byte) (b[off + done + i] ^ 0x80);
+                out.write(scratch, 0, n);
+                done += n;
+            }
+        } else {
+            out.write(b, off, len);
+        }
+        dataSize += len;
+    }
+    /**
+     * Finish the file by writing the final sizes into the header.
+     * @throws IOException If the file cannot be written.
+     * */
+    public void close() throws IOException {
+        out.close();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.write(header(dataSize));
+        }
+    }
+    /**
+     * Build the header.
+     * @param dataSize The number of sample bytes.
+     * @return The header.
+     * */
+    private byte[] header(long dataSize) {
+        int channels = format.getChannels(), bits = format.getSampleSizeInBits(), rate = (int) format.getSampleRate();
+        int blockAlign = channels * ((bits + 7) / 8);
+        byte[] h = new byte[HEADER_SIZE];
+        ascii(h, 0, "RIFF");
+        int32(h, 4, (int) Math.min(dataSize + HEADER_SIZE - 8, 0xFFFFFFFFL));
+        ascii(h, 8, "WAVE");
+        ascii(h, 12, "fmt ");
+        int32(h, 16, 16); // Size of the fmt chunk
+        int16(h, 20, 1); // PCM
+        int16(h, 22, channels);
+        int32(h, 24, rate);
+        int32(h, 28, rate * blockAlign); // Bytes per second
+        int16(h, 32, blockAlign);
+        int16(h, 34, bits);
+        ascii(h, 36, "data");
+        int32(h, 40, (int) Math.min(dataSize, 0xFFFFFFFFL));
+        return h;
+    }
+    private static void ascii(byte[] b, int off, String s) {
+        for (int i = 0; i < s.length(); i++) b[off + i] = (byte) s.charAt(i);
+    }
+    private static void int16(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >> 8);
+    }
+    private static void int32(byte[] b, int off, int v) {
+        int16(b, off, v);
+        int16(b, off + 2, v >> 16);
+    }
+}
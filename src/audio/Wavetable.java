@@ -0,0 +1,111 @@
+package audio;
+
+/**
+ * @author Shreyas Raghunath
+ * The Wavetable class holds precomputed, band-limited tables of the built-in SQUARE, TRIANGLE
+ * and SAWTOOTH waveforms. Each waveform is stored as a set of tables ("mipmaps") built by
+ * additive synthesis, one per harmonic count, so a tone is read from the richest table whose
+ * highest harmonic still lies below the Nyquist frequency. Reading a table costs one linear
+ * interpolation per sample instead of a transcendental call, and high notes do not alias.
+ * */
+final class Wavetable {
+    /**
+     * The number of points per period. Must be a power of two.
+     * */
+    static final int SIZE = 2048;
+    /**
+     * Mask used to wrap table indices.
+     * */
+    private static final int MASK = SIZE - 1;
+    /**
+     * The number of tables per waveform. Table i contains the first MAX_HARMONICS >> i harmonics.
+     * */
+    private static final int LEVELS = 11;
+    /**
+     * The number of harmonics in the richest table. Limited by the table size.
+     * */
+    private static final int MAX_HARMONICS = SIZE / 2;
+    /**
+     * One period of a sine wave, used to build the tables without calling Math.sin for every harmonic.
+     * */
+    private static final double[] SINE = new double[SIZE];
+    static {
+        for (int i = 0; i < SIZE; i++) SINE[i] = Math.sin(PSG.TWO_PI * i / SIZE);
+    }
+    /**
+     * The tables, from the richest to the one that only contains the fundamental.
+     * Each table has one extra point at the end so that interpolation never has to wrap.
+     * */
+    private final float[][] levels = new float[LEVELS][];
+    /**
+     * @param odd Only use odd harmonics.
+     * @param coefficients The amplitude of each harmonic k (starting at 1) in the Fourier sine series, indexed by k.
+     * */
+    private Wavetable(boolean odd, double[] coefficients) {
+        for (int level = 0; level < LEVELS; level++) {
+            int harmonics = MAX_HARMONICS >> level;
+            double[] sum = new double[SIZE];
+            for (int k = 1; k <= harmonics; k += odd ? 2 : 1) {
+                double c = coefficients[k];
+                for (int i = 0; i < SIZE; i++) sum[i] += c * SINE[k * i & MASK]; // sin(k * x) from the sine table
+            }
+            float[] table = new float[SIZE + 1];
+            for (int i = 0; i < SIZE; i++) table[i] = (float) sum[i];
+            table[SIZE] = table[0];
+            levels[level] = table;
+        }
+    }
+    /**
+     * Holds the tables of the built-in waveforms, which are only built once they are first needed.
+     * */
+    private static final class BuiltIn {
+        static final Wavetable SQUARE, TRIANGLE, SAWTOOTH;
+        static {
+            double[] square = new double[MAX_HARMONICS + 1], triangle = new double[MAX_HARMONICS + 1], sawtooth = new double[MAX_HARMONICS + 1];
+            for (int k = 1; k <= MAX_HARMONICS; k++) {
+                square[k] = 4 / (Math.PI * k);
+                triangle[k] = ((k - 1) / 2 % 2 == 0 ? 8 : -8) / (Math.PI * Math.PI * k * k);
+                sawtooth[k] = (k % 2 == 1 ? 2 : -2) / (Math.PI * k);
+            }
+            SQUARE = new Wavetable(true, square);
+            TRIANGLE = new Wavetable(true, triangle);
+            SAWTOOTH = new Wavetable(false, sawtooth);
+        }
+    }
+    /**
+     * Get the wavetable of a waveform.
+     * @param wf The waveform.
+     * @return The wavetable, or null if the waveform is not one of SQUARE, TRIANGLE and SAWTOOTH.
+     * */
+    static Wavetable forWaveform(PSG.Waveform wf) {
+        if (wf == PSG.Waveform.SQUARE) return BuiltIn.SQUARE;
+        if (wf == PSG.Waveform.TRIANGLE) return BuiltIn.TRIANGLE;
+        if (wf == PSG.Waveform.SAWTOOTH) return BuiltIn.SAWTOOTH;
+        return null;
+    }
+    /**
+     * Get the richest table that does not alias at the given frequency.
+     * @param freq The frequency of the tone in Hz.
+     * @param sampleRate The sample rate in Hz.
+     * @return The table.
+     * */
+    float[] table(double freq, double sampleRate) {
+        double harmonics = sampleRate / 2 / Math.abs(freq); // The number of harmonics below the Nyquist frequency
+        int level = 0;
+        while (level < LEVELS - 1 && MAX_HARMONICS >> level > harmonics) level++;
+        return levels[level];
+    }
+    /**
+     * Read a table with linear interpolation.
+     * @param table The table.
+     * @param phase The position within the period, in periods. Values outside of [0, 1) are wrapped.
+     * @return The interpolated value.
+     * */
+    static double lookup(float[] table, double phase) {
+        double pos = (phase - Math.floor(phase)) * SIZE;
+        int i = (int) pos;
+        double frac = pos - i;
+        i &= MASK; // pos rounds up to SIZE for phases just below a whole period
+        return table[i] + frac * (table[i + 1] - table[i]);
+    }
+}